@@ -24,14 +24,20 @@ class ProxyVpnService : VpnService(), ProtectSocket {
     private var vpnThread: ProxyVpnThread? = null
 
     companion object {
+        //TUN的默认MTU，也是未配置MTU时的最大数据包长度
         const val MAX_PACKET_LEN = 1500
 
+        //可配置的MTU范围，上限受IP报头总长度字段限制
+        const val MIN_MTU = 576
+        const val MAX_MTU = 65535
+
         const val VIRTUAL_HOST = "10.0.0.2"
 
         const val PROXY_HOST_KEY = "ProxyHost"
         const val PROXY_PORT_KEY = "ProxyPort"
         const val ALLOW_APPS_KEY = "AllowApps" //允许的名单
         const val DISALLOW_APPS_KEY = "DisallowApps" //禁止的名单
+        const val MTU_KEY = "Mtu"
 
         /**
          * 动作：断开连接
@@ -50,6 +56,7 @@ class ProxyVpnService : VpnService(), ProtectSocket {
         var port: Int = 0
         var allowApps: ArrayList<String>? = null
         var disallowApps: ArrayList<String>? = null
+        var mtu: Int = MAX_PACKET_LEN
 
         fun stopVpnIntent(context: Context): Intent {
             return Intent(context, ProxyVpnService::class.java).also {
@@ -62,13 +69,15 @@ class ProxyVpnService : VpnService(), ProtectSocket {
             proxyHost: String? = host,
             proxyPort: Int? = port,
             allowApps: ArrayList<String>? = this.allowApps,
-            disallowApps: ArrayList<String>? = this.disallowApps
+            disallowApps: ArrayList<String>? = this.disallowApps,
+            mtu: Int = this.mtu
         ): Intent {
             return Intent(context, ProxyVpnService::class.java).also {
                 it.putExtra(PROXY_HOST_KEY, proxyHost)
                 it.putExtra(PROXY_PORT_KEY, proxyPort)
                 it.putStringArrayListExtra(ALLOW_APPS_KEY, allowApps)
                 it.putStringArrayListExtra(DISALLOW_APPS_KEY, disallowApps)
+                it.putExtra(MTU_KEY, mtu)
             }
         }
     }
@@ -87,7 +96,8 @@ class ProxyVpnService : VpnService(), ProtectSocket {
                 intent.getStringExtra(PROXY_HOST_KEY) ?: host!!,
                 intent.getIntExtra(PROXY_PORT_KEY, port),
                 intent.getStringArrayListExtra(ALLOW_APPS_KEY) ?: allowApps,
-                intent.getStringArrayListExtra(DISALLOW_APPS_KEY)
+                intent.getStringArrayListExtra(DISALLOW_APPS_KEY),
+                intent.getIntExtra(MTU_KEY, mtu)
             )
             START_STICKY
         }
@@ -107,14 +117,16 @@ class ProxyVpnService : VpnService(), ProtectSocket {
         proxyHost: String,
         proxyPort: Int,
         allowPackages: ArrayList<String>?,
-        disallowPackages: ArrayList<String>?
+        disallowPackages: ArrayList<String>?,
+        vpnMtu: Int
     ) {
-        Log.i("ProxyVpnService", "startVpn $proxyHost:$proxyPort $allowPackages")
+        Log.i("ProxyVpnService", "startVpn $proxyHost:$proxyPort mtu=$vpnMtu $allowPackages")
 
         host = proxyHost
         port = proxyPort
         allowApps = allowPackages
         disallowApps = disallowPackages
+        mtu = vpnMtu.coerceIn(MIN_MTU, MAX_MTU)
         vpnInterface = createVpnInterface(proxyHost, proxyPort, allowPackages, disallowPackages)
         if (vpnInterface == null) {
             val alertDialog = Intent(applicationContext, VpnAlertDialog::class.java)
@@ -129,7 +141,8 @@ class ProxyVpnService : VpnService(), ProtectSocket {
         vpnThread = ProxyVpnThread(
             vpnInterface!!,
             proxyHost,
-            proxyPort
+            proxyPort,
+            mtu
         )
         vpnThread!!.start()
         isRunning = true
@@ -173,11 +186,12 @@ class ProxyVpnService : VpnService(), ProtectSocket {
     ):
             ParcelFileDescriptor? {
         val build = Builder()
-            .setMtu(MAX_PACKET_LEN)
+            .setMtu(mtu)
             .addAddress(VIRTUAL_HOST, 32)
             .addRoute("0.0.0.0", 0)
             .setSession(baseContext.applicationInfo.name)
-            .setBlocking(true)
+            //VPN线程通过poll等待数据，随后非阻塞地批量读取；写线程在发送队列满时poll等待可写
+            .setBlocking(false)
 
         val packages = allowPackages?.filter { it != baseContext.packageName }
         if (packages?.isNotEmpty() == true) {
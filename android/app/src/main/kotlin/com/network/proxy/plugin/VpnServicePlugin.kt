@@ -24,9 +24,11 @@ class VpnServicePlugin : AndroidFlutterPlugin() {
                     val port = call.argument<Int>("proxyPort")
                     val allowApps = call.argument<ArrayList<String>>("allowApps")
                     val disallowApps = call.argument<ArrayList<String>>("disallowApps")
-                    val prepareVpn = prepareVpn(host!!, port!!, allowApps, disallowApps)
+                    //mtu为可选参数，Dart端目前不传，使用上次的配置（默认1500）
+                    val mtu = call.argument<Int>("mtu") ?: ProxyVpnService.mtu
+                    val prepareVpn = prepareVpn(host!!, port!!, allowApps, disallowApps, mtu)
                     if (prepareVpn) {
-                        startVpn(host, port, allowApps, disallowApps)
+                        startVpn(host, port, allowApps, disallowApps, mtu)
                     }
                     result.success(prepareVpn)
                 }
@@ -41,8 +43,9 @@ class VpnServicePlugin : AndroidFlutterPlugin() {
                     val port = call.argument<Int>("proxyPort")
                     val allowApps = call.argument<ArrayList<String>>("allowApps")
                     val disallowApps = call.argument<ArrayList<String>>("disallowApps")
+                    val mtu = call.argument<Int>("mtu") ?: ProxyVpnService.mtu
                     stopVpn()
-                    startVpn(host!!, port!!, allowApps, disallowApps)
+                    startVpn(host!!, port!!, allowApps, disallowApps, mtu)
                 }
 
                 else -> {
@@ -60,7 +63,8 @@ class VpnServicePlugin : AndroidFlutterPlugin() {
         host: String,
         port: Int,
         allowApps: ArrayList<String>?,
-        disallowApps: ArrayList<String>?
+        disallowApps: ArrayList<String>?,
+        mtu: Int
     ): Boolean {
         val intent = VpnService.prepare(activity)
         if (intent != null) {
@@ -68,6 +72,7 @@ class VpnServicePlugin : AndroidFlutterPlugin() {
             ProxyVpnService.port = port
             ProxyVpnService.allowApps = allowApps
             ProxyVpnService.disallowApps = disallowApps
+            ProxyVpnService.mtu = mtu
             activity.startActivityForResult(intent, REQUEST_CODE)
             return false
         }
@@ -82,8 +87,9 @@ class VpnServicePlugin : AndroidFlutterPlugin() {
         port: Int,
         allowApps: ArrayList<String>? = arrayListOf(),
         disallowApps: ArrayList<String>? = arrayListOf(),
+        mtu: Int = ProxyVpnService.mtu,
     ) {
-        val intent = ProxyVpnService.startVpnIntent(activity, host, port, allowApps, disallowApps)
+        val intent = ProxyVpnService.startVpnIntent(activity, host, port, allowApps, disallowApps, mtu)
         activity.startService(intent)
     }
 
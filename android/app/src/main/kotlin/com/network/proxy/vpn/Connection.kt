@@ -1,35 +1,56 @@
 package com.network.proxy.vpn
 
-import android.util.Log
+import com.network.proxy.vpn.socket.BufferPool
+import com.network.proxy.vpn.socket.ByteRing
 import com.network.proxy.vpn.socket.CloseableConnection
+import com.network.proxy.vpn.socket.Constant
+import com.network.proxy.vpn.socket.IoStats
+import com.network.proxy.vpn.socket.OutOfOrderQueue
+import com.network.proxy.vpn.socket.RetransmissionQueue
+import com.network.proxy.vpn.socket.RttEstimator
+import com.network.proxy.vpn.socket.SegmentBuffer
+import com.network.proxy.vpn.socket.TimingWheel
+import com.network.proxy.vpn.socket.UploadCredits
 import com.network.proxy.vpn.transport.protocol.IP4Header
 import com.network.proxy.vpn.transport.protocol.TCPHeader
+import com.network.proxy.vpn.transport.protocol.TcpOptions
 import com.network.proxy.vpn.transport.protocol.UDPHeader
 import com.network.proxy.vpn.util.PacketUtil
-import java.io.ByteArrayOutputStream
+import com.network.proxy.vpn.util.SequenceNumber
 import java.io.IOException
 import java.nio.ByteBuffer
+import java.nio.channels.GatheringByteChannel
 import java.nio.channels.SelectionKey
 import java.nio.channels.spi.AbstractSelectableChannel
+import java.util.concurrent.atomic.AtomicInteger
 import kotlin.concurrent.Volatile
 
 class Connection(
     val protocol: Protocol,
     val sourceIp: Int, val sourcePort: Int,
     val destinationIp: Int, val destinationPort: Int,
-    private val connectionCloser: CloseableConnection
+    private val connectionCloser: CloseableConnection,
+    bufferPool: BufferPool,
+    private val uploadCredits: UploadCredits? = null
 ) {
 
+    //打包的五元组，作为[ConnectionTable]的键
+    val flowAddresses = flowAddresses(sourceIp, destinationIp)
+    val flowPorts = flowPorts(protocol, sourcePort, destinationPort)
+
+    //[ConnectionTable]的LRU链表指针
+    internal var lruPrev: Connection? = null
+    internal var lruNext: Connection? = null
+
     var channel: AbstractSelectableChannel? = null
     var selectionKey: SelectionKey? = null
 
-    //接收用于存储来自远程主机的数据的缓冲器
-    private val receivingStream: ByteArrayOutputStream = ByteArrayOutputStream()
-
-    //发送缓冲区，用于存储要从vpn客户端发送到目标主机的数据
-    private val sendingStream: ByteArrayOutputStream = ByteArrayOutputStream()
+    //从远程主机读入、尚未发给客户端的报文段，受下行额度限制
+    private val receivedSegments = ArrayDeque<SegmentBuffer>()
+    private var receivedBytes = 0
 
-    var hasReceivedLastSegment = false
+    //发送缓冲区，用于存储要从vpn客户端发送到目标主机的数据，TCP受通告窗口和全局上行额度限制
+    private val sendingRing = ByteRing(bufferPool)
 
     /**
      * 是否初始化链接 针对代理判断协议延迟初始化
@@ -47,12 +68,32 @@ class Connection(
     var timestampSender = 0
     var timestampReplyTo = 0
 
-    //从客户端接收的序列
+    //从客户端按序接收的序列，只随交付到发送缓冲区的数据推进
     var recSequence: Long = 0
 
+    //客户端超前到达的报文段
+    val outOfOrderQueue = OutOfOrderQueue()
+
+    //已按序接收但尚未确认的字节数和报文段数，延迟ACK
+    var pendingAckBytes = 0
+    var pendingAckSegments = 0
+
     //在tcp选项内的SYN期间由客户端发送
     var maxSegmentSize = 0
 
+    //发往客户端的报文段的最大负载，由客户端的MSS、TUN的MTU和协商的选项决定
+    var sendSegmentSize = 536
+
+    //SYN-ACK中与客户端协商的选项
+    var tcpOptions: TcpOptions = TcpOptions.NONE
+
+    //客户端通告窗口的扩大因子，未协商时为0
+    var clientWindowScale = 0
+
+    //最近一次通告给客户端的接收窗口（字节）
+    @Volatile
+    private var advertisedWindow = 0
+
     //跟踪我们发送给客户端的ack，并等待客户端返回ack
     var sendUnAck: Long = 0
 
@@ -73,7 +114,70 @@ class Connection(
     //indicate that vpn client has sent FIN flag and it has been acked
     var isAckedToFin = false
 
+    //从上游读取、尚未被客户端确认的字节数，见[com.network.proxy.vpn.socket.FlowCredits]
+    val clientQueuedBytes = AtomicInteger()
+
+    //上游已关闭，缓冲的数据全部发送后再向客户端发送FIN
+    @Volatile
+    var isFinPending = false
+
+    //客户端通告的接收窗口（字节，已按扩大因子还原）
+    var clientWindow = 0
+
+    //上次更新客户端窗口的报文段的序列号和确认号，即RFC 793的SND.WL1和SND.WL2
+    var windowUpdateSeq: Long = 0
+    var windowUpdateAck: Long = 0
+
+    //客户端窗口为零后连续发送的窗口探测数，窗口打开后清零
+    var windowProbes = 0
+
+    //已发送给客户端但未确认的报文段，用于重传
+    val retransmissionQueue = RetransmissionQueue()
+
+    val rttEstimator = RttEstimator()
+
+    //连续超时重传的次数，收到新的确认后清零
+    var retransmitCount = 0
+
+    //连续收到的重复ACK数
+    var duplicateAcks = 0
+
+    //连接的定时器，由NIO服务在连接创建时从时间轮分配，见[com.network.proxy.vpn.socket.SocketNIODataService.track]
+    var retransmitTimer: TimingWheel.Timer? = null
+    var ackTimer: TimingWheel.Timer? = null
+    var flushTimer: TimingWheel.Timer? = null
+    var connectTimer: TimingWheel.Timer? = null
+    var idleTimer: TimingWheel.Timer? = null
+
+    //最近一次收到客户端数据包或上游数据的时间（[PacketUtil.elapsedMillis]），空闲定时器到期时检查
+    @Volatile
+    var lastActive = PacketUtil.elapsedMillis
+
+    //排队字节数超过额度，暂停读取上游socket
+    @Volatile
+    var isReadPaused = false
+
     companion object {
+        /**
+         * 源IP在高32位，目的IP在低32位
+         */
+        @JvmStatic
+        fun flowAddresses(sourceIp: Int, destIp: Int): Long {
+            return (sourceIp.toLong() shl 32) or (destIp.toLong() and 0xFFFFFFFFL)
+        }
+
+        /**
+         * 协议在高32位，源端口和目的端口各占16位
+         */
+        @JvmStatic
+        fun flowPorts(protocol: Protocol, sourcePort: Int, destPort: Int): Long {
+            return (protocol.ordinal.toLong() shl 32) or ((sourcePort.toLong() and 0xFFFF) shl 16) or
+                    (destPort.toLong() and 0xFFFF)
+        }
+
+        /**
+         * 可读的连接标识，只用于日志
+         */
         fun getConnectionKey(
             protocol: Protocol, destIp: Int, destPort: Int, sourceIp: Int, sourcePort: Int
         ): String {
@@ -90,88 +194,221 @@ class Connection(
         connectionCloser.closeConnection(this)
     }
 
+    /**
+     * 发送缓冲区剩余空间，客户端最多还能发送这么多数据。全局上行额度用尽时收缩到保底值
+     */
+    fun receiveBufferFree(): Int {
+        val free = maxOf(Constant.RECEIVE_WINDOW_SIZE - sendingRing.size, 0)
+        return if (uploadCredits == null) free else minOf(free, uploadCredits.available(sendingRing.size))
+    }
+
+    /**
+     * 非SYN报文中通告的窗口字段值，由发送缓冲区剩余空间按协商的扩大因子缩放得到，并记录本次通告的窗口
+     */
+    fun receiveWindow(): Int {
+        val scale = maxOf(tcpOptions.windowScale, 0)
+        val window = minOf(receiveBufferFree() shr scale, 0xFFFF)
+        advertisedWindow = window shl scale
+        return window
+    }
+
+    /**
+     * 缓冲区数据写到上游后窗口是否已明显扩大，需要主动发送窗口更新。
+     * 增量不小于一个MSS（或缓冲区的一半）时才更新，避免糊涂窗口综合症
+     */
+    fun needsWindowUpdate(): Boolean {
+        val scale = maxOf(tcpOptions.windowScale, 0)
+        val window = minOf(receiveBufferFree() shr scale, 0xFFFF) shl scale
+        val threshold = minOf(Constant.RECEIVE_WINDOW_SIZE / 2, receiveSegmentSize())
+        return window - advertisedWindow >= threshold
+    }
+
+    /**
+     * 客户端发送的报文段大小，未协商MSS时使用默认值536
+     */
+    fun receiveSegmentSize(): Int {
+        return if (maxSegmentSize > 0) maxSegmentSize else 536
+    }
+
     /**
      * 设置要发送到目标服务器的数据
      */
-    @Synchronized
     fun setSendingData(data: ByteBuffer): Int {
-        val remaining = data.remaining()
-        sendingStream.write(data.array(), data.position(), data.remaining())
-        return remaining
+        val added = sendingRing.write(data)
+        uploadCredits?.acquire(added)
+        return added
     }
 
-    @Synchronized
-    fun addReceivedData(data: ByteArray?) {
-        try {
-            receivingStream.write(data)
-        } catch (e: IOException) {
-            Log.e(TAG, e.toString())
-        }
+    fun addReceivedData(segment: SegmentBuffer) {
+        receivedSegments.addLast(segment)
+        receivedBytes += segment.payloadLength
     }
 
     /**
-     * 获取缓冲区中接收到的所有数据并清空它。
+     * 取出下一个报文段，超过maxSize时拆分，剩余部分留在队首。队列为空时返回null
      */
-    @Synchronized
-    fun getReceivedData(maxSize: Int): ByteArray? {
-        var data = receivingStream.toByteArray()
-        receivingStream.reset()
-        if (data.size > maxSize) {
-            val small = ByteArray(maxSize)
-            System.arraycopy(data, 0, small, 0, maxSize)
-            val len = data.size - maxSize
-            receivingStream.write(data, maxSize, len)
-            data = small
+    fun getReceivedData(maxSize: Int): SegmentBuffer? {
+        val segment = receivedSegments.removeFirstOrNull() ?: return null
+        if (segment.payloadLength > maxSize) {
+            receivedSegments.addFirst(segment.split(maxSize))
         }
-        return data
+        receivedBytes -= segment.payloadLength
+        return segment
     }
 
     /**
      * buffer has more data for vpn client
      */
     fun hasReceivedData(): Boolean {
-        return receivingStream.size() > 0
+        return receivedBytes > 0
+    }
+
+    fun receivedDataSize(): Int {
+        return receivedBytes
+    }
+
+    /**
+     * 已发送但未被客户端确认的字节数
+     */
+    fun bytesInFlight(): Int {
+        return maxOf(SequenceNumber.diff(sendNext, sendUnAck), 0)
+    }
+
+    /**
+     * 客户端确认了新数据：移除已确认的报文段，更新RTT估计，并重启或停止重传定时器
+     *
+     * @param timestampEcho 客户端回显的时间戳，协商了时间戳选项时用于RTT采样
+     */
+    fun acknowledge(ackNumber: Long, timestampEcho: Int) {
+        val now = PacketUtil.elapsedMillis
+        retransmissionQueue.acknowledge(ackNumber, now)
+        if (tcpOptions.timestamps && timestampEcho != 0) {
+            //时间戳回显的是我们发送时的时钟，重传的报文段同样有效
+            rttEstimator.sample((PacketUtil.timestampMillis - timestampEcho).toLong())
+        } else if (retransmissionQueue.rttSample >= 0) {
+            rttEstimator.sample(retransmissionQueue.rttSample)
+        }
+        sendUnAck = ackNumber
+        duplicateAcks = 0
+        retransmitCount = 0
+        if (retransmissionQueue.isEmpty()) {
+            retransmitTimer?.cancel()
+        } else {
+            retransmitTimer?.schedule(rttEstimator.rto)
+        }
+    }
+
+    /**
+     * 已向客户端发送了确认到recSequence的报文（纯ACK或捎带ACK的数据），清除延迟ACK状态
+     *
+     * @return 延迟ACK省去的ACK数：这次确认合并了n个尚未确认的报文段时为n-1，没有待确认的报文段时为0
+     */
+    fun ackSent(): Int {
+        val suppressed = maxOf(pendingAckSegments - 1, 0)
+        pendingAckBytes = 0
+        pendingAckSegments = 0
+        ackTimer?.cancel()
+        return suppressed
+    }
+
+    /**
+     * 连接关闭时取消所有定时器
+     */
+    fun cancelTimers() {
+        retransmitTimer?.cancel()
+        ackTimer?.cancel()
+        flushTimer?.cancel()
+        connectTimer?.cancel()
+        idleTimer?.cancel()
+    }
+
+    /**
+     * RFC 793的窗口更新检查：只有不旧于上次窗口更新的报文段（序列号更新，或序列号相同而确认号不旧）
+     * 才更新客户端窗口，乱序到达的旧ACK不会用过期的窗口覆盖
+     *
+     * @return 是否更新了窗口
+     */
+    fun updateClientWindow(seq: Long, ack: Long, window: Int): Boolean {
+        if (SequenceNumber.lt(ack, sendUnAck) || SequenceNumber.lt(seq, windowUpdateSeq) ||
+            (SequenceNumber.diff(seq, windowUpdateSeq) == 0 && SequenceNumber.lt(ack, windowUpdateAck))
+        ) {
+            return false
+        }
+        clientWindow = window
+        windowUpdateSeq = seq
+        windowUpdateAck = ack
+        if (window > 0) {
+            windowProbes = 0
+        }
+        return true
+    }
+
+    /**
+     * 客户端窗口内还可以发送的字节数
+     */
+    fun sendWindowAvailable(): Int {
+        return maxOf(clientWindow - bytesInFlight(), 0)
+    }
+
+    /**
+     * 是否需要继续关注上游的可读事件，暂停读取或上游已关闭时不需要
+     */
+    fun wantsRead(): Boolean {
+        return !isReadPaused && !isFinPending
     }
 
     fun hasDataToSend(): Boolean {
-        return sendingStream.size() > 0
+        return !sendingRing.isEmpty()
+    }
+
+    fun sendingDataSize(): Int {
+        return sendingRing.size
     }
 
     /**
-     * 出列数据以发送到服务器
+     * 将缓冲的数据直接写到服务器，写入的部分出列
+     *
+     * @return 写入的字节数，socket缓冲区已满时可能只写入一部分
      */
-    @Synchronized
-    fun getSendingData(): ByteArray? {
-        val data = sendingStream.toByteArray()
-        sendingStream.reset()
-        return data
+    @Throws(IOException::class)
+    fun writeSendingData(channel: GatheringByteChannel): Long {
+        val written = sendingRing.writeTo(channel)
+        uploadCredits?.release(written.toInt())
+        return written
+    }
+
+    /**
+     * 连接关闭时将缓冲的报文段和块归还缓冲池
+     */
+    fun releaseBuffers() {
+        while (receivedSegments.isNotEmpty()) {
+            receivedSegments.removeFirst().release()
+        }
+        receivedBytes = 0
+        retransmissionQueue.clear()
+        uploadCredits?.release(sendingRing.size)
+        sendingRing.clear()
     }
 
     fun cancelKey() {
         selectionKey?.let {
-            synchronized(it) {
-                if (!it.isValid) return
-                it.cancel()
-            }
+            if (!it.isValid) return
+            it.cancel()
         }
 
     }
 
     fun subscribeKey(op: Int) {
         selectionKey?.let {
-            synchronized(it) {
-                if (!it.isValid) return
-                it.interestOps(it.interestOps() or op)
-            }
+            if (!it.isValid) return
+            it.interestOps(it.interestOps() or op)
         }
     }
 
     fun unsubscribeKey(op: Int) {
         selectionKey?.let {
-            synchronized(it) {
-                if (!it.isValid) return
-                it.interestOps(it.interestOps() and op.inv())
-            }
+            if (!it.isValid) return
+            it.interestOps(it.interestOps() and op.inv())
         }
     }
 
@@ -2,16 +2,27 @@ package com.network.proxy.vpn
 
 import android.os.Build
 import android.util.Log
+import com.network.proxy.ProxyVpnService
 import com.network.proxy.vpn.Connection.Companion.getConnectionKey
 import com.network.proxy.vpn.socket.ClientPacketWriter
+import com.network.proxy.vpn.socket.Constant
+import com.network.proxy.vpn.socket.IoStats
+import com.network.proxy.vpn.socket.PacketHandler
+import com.network.proxy.vpn.socket.SegmentBuffer
 import com.network.proxy.vpn.socket.SocketNIODataService
 import com.network.proxy.vpn.transport.icmp.ICMPPacket
 import com.network.proxy.vpn.transport.icmp.ICMPPacketFactory
 import com.network.proxy.vpn.transport.protocol.IP4Header
+import com.network.proxy.vpn.transport.protocol.IP4HeaderView
 import com.network.proxy.vpn.transport.protocol.IPPacketFactory
+import com.network.proxy.vpn.transport.protocol.PacketEncoder
 import com.network.proxy.vpn.transport.protocol.TCPHeader
+import com.network.proxy.vpn.transport.protocol.TCPHeaderView
 import com.network.proxy.vpn.transport.protocol.TCPPacketFactory
-import com.network.proxy.vpn.transport.protocol.UDPPacketFactory
+import com.network.proxy.vpn.transport.protocol.TcpOptions
+import com.network.proxy.vpn.transport.protocol.UDPHeaderView
+import com.network.proxy.vpn.util.PacketUtil
+import com.network.proxy.vpn.util.SequenceNumber
 import com.network.proxy.vpn.util.PacketUtil.getOutput
 import com.network.proxy.vpn.util.PacketUtil.intToIPAddress
 import com.network.proxy.vpn.util.PacketUtil.isPacketCorrupted
@@ -28,11 +39,23 @@ import java.util.concurrent.SynchronousQueue
 import java.util.concurrent.ThreadPoolExecutor
 import java.util.concurrent.TimeUnit
 
+/**
+ * @param mtu TUN的MTU，用于计算通告给客户端的MSS
+ */
 class ConnectionHandler(
     private val manager: ConnectionManager,
     private val nioService: SocketNIODataService,
-    private val writer: ClientPacketWriter
-) {
+    private val writer: ClientPacketWriter,
+    mtu: Int = ProxyVpnService.MAX_PACKET_LEN
+) : PacketHandler {
+
+    companion object {
+        //客户端未在SYN中携带MSS选项时的默认值（RFC 9293）
+        private const val DEFAULT_SEGMENT_SIZE = 536
+
+        //收到第3个重复ACK时快速重传（RFC 5681）
+        private const val DUPLICATE_ACK_THRESHOLD = 3
+    }
 
     private val pingThreadPool: ExecutorService = ThreadPoolExecutor(
         1, 20,  // 1 - 20 parallel pings max
@@ -41,61 +64,93 @@ class ConnectionHandler(
         ThreadPoolExecutor.DiscardPolicy() // Replace running pings if there's too many
     )
 
+    /**
+     * 直通转发：按序到达的上行数据不等待PSH就写往上游。关闭后只在PSH或窗口即将关闭时写出
+     */
+    @Volatile
+    var isCutThrough = true
+
+    //直通转发时攒够此字节数立即写出，0表示每个报文段都立即写出
+    @Volatile
+    var coalesceBytes = Constant.UPSTREAM_COALESCE_BYTES
+
+    //不足coalesceBytes时最多等待的毫秒数
+    @Volatile
+    var coalesceDelayMillis = Constant.UPSTREAM_COALESCE_DELAY_MILLIS
+
+    //SYN-ACK中通告的MSS，TUN的MTU减去IP和TCP报头
+    private val maxSegmentSize = minOf(
+        mtu - PacketEncoder.IP4_HEADER_SIZE - PacketEncoder.TCP_HEADER_SIZE, 0xFFFF
+    )
+
+    //延迟ACK的最长等待时间，0表示每个报文段都立即确认
+    @Volatile
+    var delayedAckMillis = Constant.DELAYED_ACK_MILLIS
+
+    //控制包从本事件循环的缓冲池借用缓冲区，写线程写出后归还
+    private val bufferPool = nioService.bufferPool
+
+    //每个数据包复用的报头视图，仅由NIO线程访问
+    private val ipView = IP4HeaderView()
+    private val tcpView = TCPHeaderView()
+    private val udpView = UDPHeaderView()
+
     /**
      * Handle unknown raw IP packet data
      *
      * @param stream ByteBuffer to be read
      */
     @Throws(IOException::class)
-    fun handlePacket(stream: ByteBuffer) {
+    override fun handlePacket(stream: ByteBuffer) {
         stream.rewind()
 
-        val ipHeader = IPPacketFactory.createIP4Header(stream)
-
-        if (ipHeader == null) {
-            stream.rewind()
+        if (!ipView.wrap(stream, stream.position())) {
             Log.w(TAG, "Malformed IP packet ")
             return
         }
-        if (ipHeader.protocol.toInt() == 6) {
-            handleTCPPacket(stream, ipHeader)
-        } else if (ipHeader.protocol.toInt() == 17) {
-            handleUDPPacket(stream, ipHeader)
-        } else if (ipHeader.protocol.toInt() == 1) {
-            handleICMPPacket(stream, ipHeader)
+        val protocol = ipView.protocol.toInt()
+        if (protocol == 6) {
+            handleTCPPacket(stream)
+        } else if (protocol == 17) {
+            handleUDPPacket(stream)
+        } else if (protocol == 1) {
+            handleICMPPacket(stream)
         } else {
-            Log.w(TAG, "Unsupported IP protocol: " + ipHeader.protocol)
+            Log.w(TAG, "Unsupported IP protocol: $protocol")
         }
     }
 
     @Throws(IOException::class)
-    private fun handleUDPPacket(clientPacketData: ByteBuffer, ipHeader: IP4Header) {
-        val udpHeader = UDPPacketFactory.createUDPHeader(clientPacketData)
+    private fun handleUDPPacket(clientPacketData: ByteBuffer) {
+        if (!udpView.wrap(clientPacketData, ipView.payloadOffset)) {
+            Log.w(TAG, "Malformed UDP packet")
+            return
+        }
+        clientPacketData.position(udpView.payloadOffset)
+
+        val sourceIP = ipView.sourceIP
+        val destinationIP = ipView.destinationIP
+        val sourcePort = udpView.getSourcePort()
+        val destinationPort = udpView.getDestinationPort()
         var connection = manager.getConnection(
-            Protocol.UDP,
-            ipHeader.destinationIP, udpHeader.destinationPort,
-            ipHeader.sourceIP, udpHeader.sourcePort
+            Protocol.UDP, destinationIP, destinationPort, sourceIP, sourcePort
         )
         val newSession = connection == null
         if (connection == null) {
-            connection = manager.createUDPConnection(
-                ipHeader.destinationIP, udpHeader.destinationPort,
-                ipHeader.sourceIP, udpHeader.sourcePort
-            )
+            connection = manager.createUDPConnection(destinationIP, destinationPort, sourceIP, sourcePort)
         }
-        synchronized(connection) {
-            connection.lastIpHeader = ipHeader
-            connection.lastUdpHeader = udpHeader
-            manager.addClientData(clientPacketData, connection)
-            connection.isDataForSendingReady = true
+        //报头只在连接首次需要时生成，之后同一连接的地址和端口不变
+        if (connection.lastIpHeader == null) connection.lastIpHeader = ipView.toHeader()
+        if (connection.lastUdpHeader == null) connection.lastUdpHeader = udpView.toHeader()
+        connection.lastActive = PacketUtil.elapsedMillis
+        manager.addClientData(clientPacketData, connection)
+        connection.isDataForSendingReady = true
 
-            // We don't register the session until it's fully populated (as above)
-            if (newSession) nioService.registerSession(connection)
+        // We don't register the session until it's fully populated (as above)
+        if (newSession) nioService.registerSession(connection)
 
-            // Ping the NIO thread to write this, when the session is next writable
-            connection.subscribeKey(SelectionKey.OP_WRITE)
-            nioService.refreshSelect(connection)
-        }
+        // Write this when the session is next writable
+        connection.subscribeKey(SelectionKey.OP_WRITE)
         manager.keepSessionAlive(connection)
     }
 
@@ -147,80 +202,92 @@ class ConnectionHandler(
     }
 
     @Throws(IOException::class)
-    private fun handleTCPPacket(clientPacketData: ByteBuffer, ip4Header: IP4Header) {
-        val tcpHeader = TCPPacketFactory.createTCPHeader(clientPacketData)
+    private fun handleTCPPacket(clientPacketData: ByteBuffer) {
+        if (!tcpView.wrap(clientPacketData, ipView.payloadOffset)) {
+            Log.w(TAG, "Malformed TCP packet")
+            return
+        }
+        clientPacketData.position(tcpView.payloadOffset)
+
         val dataLength = clientPacketData.limit() - clientPacketData.position()
-        val sourceIP = ip4Header.sourceIP
-        val destinationIP = ip4Header.destinationIP
-        val sourcePort = tcpHeader.getSourcePort()
-        val destinationPort = tcpHeader.getDestinationPort()
-        if (tcpHeader.isSYN()) {
+        val sourceIP = ipView.sourceIP
+        val destinationIP = ipView.destinationIP
+        val sourcePort = tcpView.getSourcePort()
+        val destinationPort = tcpView.getDestinationPort()
+        if (tcpView.isSYN()) {
             // 3-way handshake + create new session
-            replySynAck(ip4Header, tcpHeader)
-        } else if (tcpHeader.isACK()) {
-            val key =
-                getConnectionKey(Protocol.TCP, destinationIP, destinationPort, sourceIP, sourcePort)
-            val connection = manager.getConnectionByKey(key)
+            replySynAck(ipView.toHeader(), tcpView.toHeader())
+        } else if (tcpView.isACK()) {
+            val connection = manager.getConnection(
+                Protocol.TCP, destinationIP, destinationPort, sourceIP, sourcePort
+            )
             if (connection == null) {
-                Log.w(TAG, "Ack for unknown session: $key")
-                if (tcpHeader.isFIN()) {
-                    sendLastAck(ip4Header, tcpHeader)
-                } else if (!tcpHeader.isRST()) {
-                    sendRstPacket(ip4Header, tcpHeader, dataLength)
+                Log.w(TAG, "Ack for unknown session: " + getConnectionKey(
+                    Protocol.TCP, destinationIP, destinationPort, sourceIP, sourcePort
+                ))
+                if (tcpView.isFIN()) {
+                    sendLastAck(ipView.toHeader(), tcpView.toHeader())
+                } else if (!tcpView.isRST()) {
+                    sendRstPacket(ipView.toHeader(), tcpView.toHeader(), dataLength)
                 }
                 return
             }
-            synchronized(connection) {
-                connection.lastIpHeader = ip4Header
-                connection.lastTcpHeader = tcpHeader
-
-                //any data from client?
-                if (dataLength > 0) {
-                    //init proxy
-                    initProxyConnect(clientPacketData, destinationIP, destinationPort, connection)
-
-                    //accumulate data from client
-                    if (connection.recSequence == 0L || tcpHeader.sequenceNumber >= connection.recSequence) {
-                        val addedLength = manager.addClientData(clientPacketData, connection)
-                        //send ack to client only if new data was added
-                        sendAck(ip4Header, tcpHeader, addedLength, connection)
-                    } else {
-                        sendAckForDisorder(ip4Header, tcpHeader, dataLength)
-                    }
-                } else {
-                    //an ack from client for previously sent data
-                    acceptAck(tcpHeader, connection)
-                    if (connection.isClosingConnection) {
-                        sendFinAck(ip4Header, tcpHeader, connection)
-                    } else if (connection.isAckedToFin && !tcpHeader.isFIN()) {
-                        //the last ACK from client after FIN-ACK flag was sent
-                        manager.closeConnection(
-                            Protocol.TCP,
-                            destinationIP,
-                            destinationPort,
-                            sourceIP,
-                            sourcePort
-                        )
-                        //						Log.d(TAG, "got last ACK after FIN, session is now closed.");
-                    }
-                }
-                //received the last segment of data from vpn client
-                if (tcpHeader.isPSH()) {
-                    // Tell the NIO thread to immediately send data to the destination
-                    pushDataToDestination(connection, tcpHeader)
-                } else if (tcpHeader.isFIN()) {
-                    //fin from vpn client is the last packet
-                    //ack it
-//					Log.d(TAG, "FIN from vpn client, will ack it.");
-                    ackFinAck(ip4Header, tcpHeader, connection)
-                } else if (tcpHeader.isRST()) {
-                    resetTCPConnection(ip4Header, tcpHeader)
+            //连接已保存的报头就地刷新，不再为每个数据包创建新对象
+            val ip4Header = connection.lastIpHeader ?: ipView.toHeader().also { connection.lastIpHeader = it }
+            val tcpHeader = connection.lastTcpHeader?.also { tcpView.copyTo(it) }
+                ?: tcpView.toHeader().also { connection.lastTcpHeader = it }
+            connection.lastActive = PacketUtil.elapsedMillis
+            if (connection.tcpOptions.timestamps && tcpHeader.timeStampSender != 0) {
+                //回显客户端最近的时间戳，未携带时间戳的报文保留上次的值
+                connection.timestampReplyTo = tcpHeader.timeStampSender
+            }
+
+            //纯ACK和携带数据的ACK都可能确认下行数据
+            acceptAck(tcpHeader, connection, dataLength == 0)
+
+            //any data from client?
+            if (dataLength > 0) {
+                //init proxy
+                initProxyConnect(clientPacketData, destinationIP, destinationPort, connection)
+
+                //accumulate data from client
+                val addedLength = acceptClientData(clientPacketData, tcpHeader.sequenceNumber, connection)
+                acknowledgeClientData(ip4Header, tcpHeader, addedLength, connection)
+                if (addedLength > 0 && !tcpHeader.isPSH()) {
+                    forwardClientData(connection, tcpHeader)
                 }
-                if (!connection.isAbortingConnection) {
-                    manager.keepSessionAlive(connection)
+            } else {
+                //an ack from client for previously sent data, already accepted above
+                if (connection.isClosingConnection) {
+                    sendFinAck(ip4Header, tcpHeader, connection)
+                } else if (connection.isAckedToFin && !tcpHeader.isFIN()) {
+                    //the last ACK from client after FIN-ACK flag was sent
+                    manager.closeConnection(
+                        Protocol.TCP,
+                        destinationIP,
+                        destinationPort,
+                        sourceIP,
+                        sourcePort
+                    )
+                    //						Log.d(TAG, "got last ACK after FIN, session is now closed.");
                 }
             }
-        } else if (tcpHeader.isFIN()) {
+            //received the last segment of data from vpn client
+            if (tcpHeader.isPSH()) {
+                // Tell the NIO thread to immediately send data to the destination
+                pushDataToDestination(connection, tcpHeader)
+            } else if (tcpHeader.isFIN()) {
+                //fin from vpn client is the last packet
+                //ack it
+//					Log.d(TAG, "FIN from vpn client, will ack it.");
+                ackFinAck(ip4Header, tcpHeader, connection)
+            } else if (tcpHeader.isRST()) {
+                resetTCPConnection(destinationIP, destinationPort, sourceIP, sourcePort)
+            }
+            if (!connection.isAbortingConnection) {
+                manager.keepSessionAlive(connection)
+            }
+        } else if (tcpView.isFIN()) {
             //case client sent FIN without ACK
             val connection = manager.getConnection(
                 Protocol.TCP,
@@ -230,15 +297,17 @@ class ConnectionHandler(
                 sourcePort
             )
             if (connection == null) ackFinAck(
-                ip4Header,
-                tcpHeader,
+                ipView.toHeader(),
+                tcpView.toHeader(),
                 null
             ) else manager.keepSessionAlive(connection)
-        } else if (tcpHeader.isRST()) {
-            resetTCPConnection(ip4Header, tcpHeader)
+        } else if (tcpView.isRST()) {
+            resetTCPConnection(destinationIP, destinationPort, sourceIP, sourcePort)
         } else {
             Log.d(TAG, "unknown TCP flag")
-            val str1 = getOutput(ip4Header, tcpHeader, clientPacketData.array())
+            val packet = ByteArray(clientPacketData.limit())
+            clientPacketData.duplicate().apply { position(0) }.get(packet)
+            val str1 = getOutput(ipView.toHeader(), tcpView.toHeader(), packet)
             Log.d(TAG, ">>>>>>>> Received from client <<<<<<<<<<")
             Log.d(TAG, str1)
             Log.d(TAG, ">>>>>>>>>>>>>>>>>>>end receiving from client>>>>>>>>>>>>>>>>>>>>>")
@@ -277,8 +346,8 @@ class ConnectionHandler(
     }
 
     private fun sendRstPacket(ip: IP4Header, tcp: TCPHeader, dataLength: Int) {
-        val data = TCPPacketFactory.createRstData(ip, tcp, dataLength)
-        writer.write(data)
+        val data = TCPPacketFactory.createRstData(bufferPool, ip, tcp, dataLength)
+        writer.write(data, ClientPacketWriter.Lane.CONTROL)
         Log.d(
             TAG, "Sent RST Packet to client with dest => " +
                     intToIPAddress(ip.destinationIP) + ":" +
@@ -287,8 +356,8 @@ class ConnectionHandler(
     }
 
     private fun sendLastAck(ip: IP4Header, tcp: TCPHeader) {
-        val data = TCPPacketFactory.createResponseAckData(ip, tcp, tcp.sequenceNumber + 1)
-        writer.write(data)
+        val data = TCPPacketFactory.createResponseAckData(bufferPool, ip, tcp, tcp.sequenceNumber + 1)
+        writer.write(data, ClientPacketWriter.Lane.CONTROL)
 //		Log.d(TAG,"Sent last ACK Packet to client with dest => " +
 //				PacketUtil.intToIPAddress(ip.getDestinationIP()) + ":" +
 //				tcp.getDestinationPort());
@@ -297,8 +366,15 @@ class ConnectionHandler(
     private fun ackFinAck(ip: IP4Header, tcp: TCPHeader, connection: Connection?) {
         val ack = tcp.sequenceNumber + 1
         val seq = tcp.ackNumber
-        val data = TCPPacketFactory.createFinAckData(ip, tcp, ack, seq, isFin = true, isAck = true)
-        writer.write(data)
+        val data = if (connection == null) {
+            TCPPacketFactory.createFinAckData(bufferPool, ip, tcp, ack, seq, isFin = true, isAck = true)
+        } else {
+            TCPPacketFactory.createFinAckData(
+                bufferPool, ip, tcp, ack, seq, isFin = true, isAck = true, connection.receiveWindow(),
+                connection.tcpOptions, PacketUtil.timestampMillis, connection.timestampReplyTo
+            )
+        }
+        writer.write(data, ClientPacketWriter.Lane.CONTROL)
         if (connection != null) {
             connection.cancelKey()
             manager.closeConnection(connection)
@@ -310,9 +386,15 @@ class ConnectionHandler(
     private fun sendFinAck(ip: IP4Header, tcp: TCPHeader, connection: Connection) {
         val ack = tcp.sequenceNumber
         val seq = tcp.ackNumber
-        val data = TCPPacketFactory.createFinAckData(ip, tcp, ack, seq, isFin = true, isAck = false)
+        val segment = TCPPacketFactory.createFinAckData(
+            bufferPool, ip, tcp, ack, seq, isFin = true, isAck = false, connection.receiveWindow(),
+            connection.tcpOptions, PacketUtil.timestampMillis, connection.timestampReplyTo
+        )
+        //交给写线程之前取出用于日志，之后缓冲区随时可能归还缓冲池
+        val data = ByteArray(segment.buffer.remaining())
+        segment.buffer.duplicate().get(data)
         val stream = ByteBuffer.wrap(data)
-        writer.write(data)
+        writer.write(segment, ClientPacketWriter.Lane.CONTROL)
 //        Log.d(TAG, "00000000000 FIN-ACK packet data to vpn client 000000000000")
         var vpnIp: IP4Header? = null
         try {
@@ -336,28 +418,140 @@ class ConnectionHandler(
         connection.isClosingConnection = false
     }
 
+    /**
+     * 不带PSH的按序数据：直通转发时攒够coalesceBytes立即写往上游，否则最多等待coalesceDelayMillis。
+     * 窗口即将关闭时总是立即写出，以便重新打开窗口
+     */
+    private fun forwardClientData(connection: Connection, tcp: TCPHeader) {
+        if (connection.receiveBufferFree() < connection.receiveSegmentSize()) {
+            pushDataToDestination(connection, tcp)
+            return
+        }
+        if (!isCutThrough) {
+            return
+        }
+
+        val delay = coalesceDelayMillis
+        if (connection.sendingDataSize() >= coalesceBytes || delay <= 0) {
+            pushDataToDestination(connection, tcp)
+        } else {
+            val timer = connection.flushTimer
+            if (timer != null && !timer.isScheduled) {
+                timer.schedule(delay)
+            }
+        }
+    }
+
     private fun pushDataToDestination(connection: Connection, tcp: TCPHeader) {
+        connection.flushTimer?.cancel()
         connection.isDataForSendingReady = true
-        connection.timestampReplyTo = tcp.timeStampSender
-        connection.timestampSender = System.currentTimeMillis().toInt()
-
-        // Ping the NIO thread to write this, when the session is next writable
+        // Write this when the session is next writable
         connection.subscribeKey(SelectionKey.OP_WRITE)
-        nioService.refreshSelect(connection)
     }
 
     /**
-     * send acknowledgment packet to VPN client
+     * 按序交付客户端数据。已接收过的部分丢弃，超前的报文段放入乱序队列，
+     * 空洞填补后连同队列中相邻的报文段一起交付到发送缓冲区，并推进recSequence
      *
-     * @param acceptedDataLength Data Length
+     * @return 交付到发送缓冲区的字节数，重复或乱序时为0
      */
-    private fun sendAck(
-        ipHeader: IP4Header, tcpHeader: TCPHeader, acceptedDataLength: Int, connection: Connection
+    private fun acceptClientData(data: ByteBuffer, sequence: Long, connection: Connection): Int {
+        val offset = SequenceNumber.diff(sequence, connection.recSequence)
+        val length = data.remaining()
+        if (offset > 0) {
+            //只缓存接收窗口内的报文段
+            if (offset + length <= connection.receiveBufferFree()) {
+                connection.outOfOrderQueue.offer(sequence, data)
+            }
+            return 0
+        }
+        if (-offset >= length) {
+            //重复的报文段
+            return 0
+        }
+
+        //跳过与已接收数据重叠的部分
+        data.position(data.position() - offset)
+        var added = manager.addClientData(data, connection)
+        connection.recSequence = SequenceNumber.add(connection.recSequence, added)
+        if (added < length + offset) {
+            return added
+        }
+
+        val queue = connection.outOfOrderQueue
+        while (!queue.isEmpty()) {
+            val skip = SequenceNumber.diff(connection.recSequence, queue.firstSequence())
+            if (skip < 0) {
+                //仍有空洞
+                break
+            }
+            val payload = queue.firstPayload()
+            if (skip < payload.size) {
+                val remaining = payload.size - skip
+                val delivered = manager.addClientData(ByteBuffer.wrap(payload, skip, remaining), connection)
+                connection.recSequence = SequenceNumber.add(connection.recSequence, delivered)
+                added += delivered
+                if (delivered < remaining) {
+                    //发送缓冲区已满，剩余部分留在队列中
+                    break
+                }
+            }
+            queue.removeFirst()
+        }
+        return added
+    }
+
+    /**
+     * 延迟ACK（RFC 1122 4.2.3.2）：累计满两个完整报文段的数据才确认，否则等待delayedAckMillis。
+     * 重复或乱序的报文段、PSH、FIN以及窗口即将关闭时立即确认，重复ACK告知客户端空洞的位置。
+     * 有待发送的下行数据时，ACK随数据一起发送
+     */
+    private fun acknowledgeClientData(
+        ipHeader: IP4Header, tcpHeader: TCPHeader, addedLength: Int, connection: Connection
     ) {
-        val ackNumber = connection.recSequence + acceptedDataLength
-        connection.recSequence = ackNumber
-        val ackData = TCPPacketFactory.createResponseAckData(ipHeader, tcpHeader, ackNumber)
-        writer.write(ackData)
+        val immediate = addedLength == 0 || !connection.outOfOrderQueue.isEmpty() ||
+                tcpHeader.isPSH() || tcpHeader.isFIN() ||
+                connection.receiveBufferFree() < connection.receiveSegmentSize()
+        connection.pendingAckBytes += addedLength
+        connection.pendingAckSegments++
+
+        if (!immediate && connection.hasReceivedData()) {
+            nioService.pushDataToClient(connection)
+            if (connection.pendingAckSegments == 0) {
+                return
+            }
+        }
+
+        val delay = delayedAckMillis
+        if (immediate || delay <= 0 || connection.pendingAckBytes >= 2 * connection.receiveSegmentSize()) {
+            sendAck(ipHeader, tcpHeader, connection)
+        } else {
+            val timer = connection.ackTimer
+            if (timer != null && !timer.isScheduled) {
+                timer.schedule(delay)
+            }
+        }
+    }
+
+    /**
+     * send acknowledgment packet to VPN client, 确认到recSequence为止按序接收的数据
+     */
+    private fun sendAck(ipHeader: IP4Header, tcpHeader: TCPHeader, connection: Connection) {
+        val ackData = createAckData(ipHeader, tcpHeader, connection.recSequence, connection)
+        writer.write(ackData, ClientPacketWriter.Lane.CONTROL)
+    }
+
+    /**
+     * 创建携带当前接收窗口和协商选项的ACK，并清除连接的延迟ACK状态
+     */
+    private fun createAckData(
+        ipHeader: IP4Header, tcpHeader: TCPHeader, ackNumber: Long, connection: Connection
+    ): SegmentBuffer {
+        IoStats.pureAck(connection.ackSent())
+        return TCPPacketFactory.createResponseAckData(
+            bufferPool, ipHeader, tcpHeader, ackNumber, connection.receiveWindow(),
+            connection.tcpOptions, PacketUtil.timestampMillis, connection.timestampReplyTo
+        )
     }
 
     /**
@@ -365,70 +559,101 @@ class ConnectionHandler(
      * packet arrives.
      */
     private fun resendAck(connection: Connection) {
-        val data = TCPPacketFactory.createResponseAckData(
+        val data = createAckData(
             connection.lastIpHeader!!,
             connection.lastTcpHeader!!,
-            connection.recSequence
-        )
-        writer.write(data)
-    }
-
-    private fun sendAckForDisorder(
-        ipHeader: IP4Header, tcpHeader: TCPHeader, acceptedDataLength: Int
-    ) {
-        val ackNumber = tcpHeader.sequenceNumber + acceptedDataLength
-        Log.e(
-            TAG, "sent disorder ack, ack# " + tcpHeader.sequenceNumber +
-                    " + " + acceptedDataLength + " = " + ackNumber
+            connection.recSequence,
+            connection
         )
-        val data = TCPPacketFactory.createResponseAckData(ipHeader, tcpHeader, ackNumber)
-        writer.write(data)
+        writer.write(data, ClientPacketWriter.Lane.CONTROL)
     }
 
     /**
-     * acknowledge a packet.
+     * acknowledge a packet. 推进发送窗口左边界，更新客户端窗口，并发送窗口内缓冲的数据。
+     * 客户端允许SACK时用ACK中的SACK块更新重传队列的记分板。
+     * 有未确认数据时，窗口不变的重复纯ACK累计到阈值后快速重传：有SACK信息时只重传空洞，否则重传最早的报文段
      *
      * @param tcpHeader TCP Header
+     * @param isPureAck 不携带数据的ACK
      */
-    private fun acceptAck(tcpHeader: TCPHeader, connection: Connection) {
-        val isCorrupted = isPacketCorrupted(tcpHeader)
+    private fun acceptAck(tcpHeader: TCPHeader, connection: Connection, isPureAck: Boolean) {
+        val isCorrupted = isPacketCorrupted(tcpView)
 
 //        connection.setPacketCorrupted(isCorrupted);
         if (isCorrupted) {
             Log.e(TAG, "prev packet was corrupted, last ack# " + tcpHeader.ackNumber)
         }
-        if (tcpHeader.ackNumber > connection.sendUnAck ||
-            tcpHeader.ackNumber == connection.sendNext
+        val ackNumber = tcpHeader.ackNumber
+        val window = (tcpHeader.windowSize and 0xFFFF) shl connection.clientWindowScale
+        if (connection.tcpOptions.sackPermitted && tcpHeader.sackBlockCount > 0) {
+            updateScoreboard(tcpHeader, connection)
+        }
+        if (SequenceNumber.gt(ackNumber, connection.sendUnAck) && SequenceNumber.le(ackNumber, connection.sendNext)) {
+            //确认了新数据，归还额度
+            val acked = SequenceNumber.diff(ackNumber, connection.sendUnAck)
+            val recovering = connection.duplicateAcks >= DUPLICATE_ACK_THRESHOLD
+            connection.acknowledge(ackNumber, tcpHeader.timeStampReplyTo)
+            nioService.flowCredits.release(connection, acked)
+            //丢包恢复中的部分确认：SACK记分板仍有数据时保持恢复状态，继续重传下一个空洞（RFC 6675）
+            if (recovering && connection.retransmissionQueue.hasSacked) {
+                connection.duplicateAcks = DUPLICATE_ACK_THRESHOLD
+                nioService.fastRetransmit(connection)
+            }
+        } else if (SequenceNumber.diff(ackNumber, connection.sendUnAck) == 0 && isPureAck && !tcpHeader.isFIN()
+            && window == connection.clientWindow && connection.bytesInFlight() > 0
         ) {
-//            connection.setAcked(true);
-            connection.sendUnAck = tcpHeader.ackNumber
-            connection.recSequence = tcpHeader.sequenceNumber
-            connection.timestampReplyTo = tcpHeader.timeStampSender
-            connection.timestampSender = System.currentTimeMillis().toInt()
-        } else {
+            connection.duplicateAcks++
+            if (connection.duplicateAcks == DUPLICATE_ACK_THRESHOLD) {
+                Log.d(TAG, "fast retransmit seq# " + connection.sendUnAck + " for " + connection)
+            }
+            //之后的重复ACK可能带来新的SACK信息，每个重复ACK重传一个本轮尚未重传过的空洞
+            if (connection.duplicateAcks >= DUPLICATE_ACK_THRESHOLD) {
+                nioService.fastRetransmit(connection)
+            }
+        } else if (SequenceNumber.gt(ackNumber, connection.sendNext)) {
             Log.d(
                 TAG,
                 "Not Accepting ack# " + tcpHeader.ackNumber + " , it should be: " + connection.sendNext
             )
             Log.d(TAG, "Prev sendUnAck: " + connection.sendUnAck)
-            //            connection.setAcked(false);
+            return
+        }
+        //不旧于上次窗口更新的ACK才更新客户端窗口，窗口打开后继续发送缓冲的数据
+        connection.updateClientWindow(tcpHeader.sequenceNumber, ackNumber, window)
+        if (connection.hasReceivedData() || connection.isFinPending) {
+            nioService.pushDataToClient(connection)
+        }
+    }
+
+    /**
+     * 将SACK块标记到重传队列，忽略不在未确认范围内的块（如D-SACK）
+     */
+    private fun updateScoreboard(tcpHeader: TCPHeader, connection: Connection) {
+        val blocks = tcpHeader.sackBlocks
+        for (i in 0 until tcpHeader.sackBlockCount) {
+            val start = blocks[2 * i]
+            val end = blocks[2 * i + 1]
+            if (SequenceNumber.ge(start, end) || SequenceNumber.le(end, tcpHeader.ackNumber) ||
+                SequenceNumber.gt(end, connection.sendNext)
+            ) {
+                continue
+            }
+            connection.retransmissionQueue.markSacked(start, end)
         }
     }
 
     /**
      * set connection as aborting so that background worker will close it.
      *
-     * @param ip  IP
-     * @param tcp TCP
      */
-    private fun resetTCPConnection(ip: IP4Header, tcp: TCPHeader) {
+    private fun resetTCPConnection(destinationIP: Int, destinationPort: Int, sourceIP: Int, sourcePort: Int) {
         val session = manager.getConnection(
             Protocol.TCP,
-            ip.destinationIP, tcp.getDestinationPort(),
-            ip.sourceIP, tcp.getSourcePort()
+            destinationIP, destinationPort,
+            sourceIP, sourcePort
         )
         if (session != null) {
-            synchronized(session) { session.isAbortingConnection = true }
+            session.isAbortingConnection = true
         }
     }
 
@@ -438,8 +663,7 @@ class ConnectionHandler(
     @Throws(IOException::class)
     private fun replySynAck(ipHeader: IP4Header, tcpHeader: TCPHeader) {
         ipHeader.identification = 0
-        val packet = TCPPacketFactory.createSynAckPacketData(ipHeader, tcpHeader)
-        val tcpTransport = packet.transportHeader as TCPHeader
+        val options = TcpOptions.negotiate(tcpHeader, maxSegmentSize, Constant.RECEIVE_WINDOW_SCALE)
         val connection = manager.createTCPConnection(
             ipHeader.destinationIP, tcpHeader.getDestinationPort(),
             ipHeader.sourceIP, tcpHeader.getSourcePort()
@@ -451,22 +675,45 @@ class ConnectionHandler(
             resendAck(connection)
             return
         }
-        synchronized(connection) {
-            connection.maxSegmentSize = tcpTransport.maxSegmentSize.toInt()
-            connection.sendUnAck = tcpTransport.sequenceNumber
-            connection.sendNext = tcpTransport.sequenceNumber + 1
-            //client initial sequence has been incremented by 1 and set to ack
-            connection.recSequence = tcpTransport.ackNumber
-            connection.lastIpHeader = ipHeader
-            connection.lastTcpHeader = tcpHeader
-            if (connection.isInitConnect) {
-                nioService.registerSession(connection)
-            }
-            writer.write(packet.buffer)
+        connection.maxSegmentSize = tcpHeader.maxSegmentSize.toInt() and 0xFFFF
+        //发往客户端的报文段不超过客户端的MSS和TUN的MTU，MSS不含TCP选项，时间戳选项占用负载空间
+        val clientSegmentSize = if (connection.maxSegmentSize > 0) connection.maxSegmentSize else DEFAULT_SEGMENT_SIZE
+        connection.sendSegmentSize = minOf(clientSegmentSize, maxSegmentSize) -
+                if (options.timestamps) TcpOptions.TIMESTAMP_OPTIONS_SIZE else 0
+        connection.tcpOptions = options
+        connection.clientWindowScale = if (options.windowScale >= 0) tcpHeader.windowScale else 0
+        //服务器生成的初始序列号
+        val seqNumber = TCPPacketFactory.initialSequenceNumber()
+        //ack = received sequence + 1
+        val ackNumber = tcpHeader.sequenceNumber + 1
+        connection.timestampReplyTo = tcpHeader.timeStampSender
+        connection.timestampSender = PacketUtil.timestampMillis
+        //SYN中的窗口不做扩大
+        connection.clientWindow = tcpHeader.windowSize and 0xFFFF
+        connection.windowUpdateSeq = tcpHeader.sequenceNumber
+        connection.windowUpdateAck = seqNumber
+        //SYN占用一个序列号，客户端对SYN-ACK的确认不计入数据
+        connection.sendUnAck = seqNumber + 1
+        connection.sendNext = seqNumber + 1
+        //client initial sequence has been incremented by 1 and set to ack
+        connection.recSequence = ackNumber
+        connection.lastIpHeader = ipHeader
+        connection.lastTcpHeader = tcpHeader
+        //握手未完成或客户端不再发送数据的连接也由空闲计时器按过渡期超时回收
+        nioService.track(connection)
+        if (connection.isInitConnect) {
+            nioService.registerSession(connection)
         }
+        val synAck = TCPPacketFactory.createSynAckData(
+            bufferPool, ipHeader, tcpHeader, seqNumber, options,
+            minOf(Constant.RECEIVE_WINDOW_SIZE, 0xFFFF), connection.timestampSender
+        )
+        writer.write(synAck, ClientPacketWriter.Lane.CONTROL)
     }
 
-    private fun handleICMPPacket(clientPacketData: ByteBuffer, ipHeader: IP4Header) {
+    private fun handleICMPPacket(clientPacketData: ByteBuffer) {
+        clientPacketData.position(ipView.payloadOffset)
+        val ipHeader = ipView.toHeader()
         val requestPacket = ICMPPacketFactory.parseICMPPacket(clientPacketData)
 //        Log.d(TAG, "Got an ICMP ping packet, type $requestPacket")
         if (requestPacket.type == ICMPPacket.DESTINATION_UNREACHABLE_TYPE) {
@@ -2,9 +2,13 @@ package com.network.proxy.vpn
 
 import android.os.Build
 import android.util.Log
+import com.network.proxy.vpn.socket.BufferPool
 import com.network.proxy.vpn.socket.CloseableConnection
 import com.network.proxy.vpn.socket.Constant
+import com.network.proxy.vpn.socket.FlowCredits
+import com.network.proxy.vpn.socket.IoStats
 import com.network.proxy.vpn.socket.ProtectSocketHolder.Companion.protect
+import com.network.proxy.vpn.socket.UploadCredits
 import com.network.proxy.vpn.util.PacketUtil
 import com.network.proxy.vpn.util.ProcessInfoManager
 import java.io.IOException
@@ -13,21 +17,33 @@ import java.net.SocketAddress
 import java.nio.ByteBuffer
 import java.nio.channels.DatagramChannel
 import java.nio.channels.SocketChannel
-import java.util.concurrent.ConcurrentHashMap
-import java.util.concurrent.ConcurrentMap
+import java.util.concurrent.atomic.AtomicInteger
 
 /**
- * 管理VPN客户端的连接
+ * 管理VPN客户端的连接。每个NIO事件循环一个实例，只管理分配到该循环的连接
  */
-class ConnectionManager private constructor() : CloseableConnection {
-    //单例
-    companion object {
-        val instance = ConnectionManager()
-    }
+class ConnectionManager : CloseableConnection {
+    private val table = ConnectionTable()
+
+    //所有事件循环的连接数上限，超过后淘汰最久未活动的连接
+    var maxConnections = Constant.MAX_CONNECTIONS
 
-    private val table: ConcurrentMap<String, Connection> = ConcurrentHashMap()
+    //所有事件循环的连接总数，由EventLoopGroup在各循环的实例间共享
+    var connectionCount = AtomicInteger()
     var proxyAddress: InetSocketAddress? = null
 
+    //连接关闭时归还其占用的下行额度
+    var flowCredits: FlowCredits? = null
+
+    //客户端上行数据的全局缓冲额度，所有事件循环共享
+    var uploadCredits: UploadCredits? = null
+
+    //连接的发送和接收缓冲区从中借用块
+    var bufferPool = BufferPool()
+
+    //连接表已满时淘汰连接，负责向客户端发送RST并关闭上游
+    var evictionListener: ((Connection) -> Unit)? = null
+
     private val DEFAULT_PORTS: List<Int> = listOf(
         80,  // HTTP
         443,  // HTTPS
@@ -47,11 +63,16 @@ class ConnectionManager private constructor() : CloseableConnection {
      *
      */
     fun closeConnection(protocol: Protocol, ip: Int, port: Int, srcIp: Int, srcPort: Int) {
-        val key = Connection.getConnectionKey(protocol, ip, port, srcIp, srcPort)
-        val connection: Connection? = table.remove(key)
-        Log.d(TAG, "close connection $key")
+        val connection: Connection? = table.remove(
+            Connection.flowAddresses(srcIp, ip), Connection.flowPorts(protocol, srcPort, port)
+        )
+        Log.d(TAG, "close connection " + Connection.getConnectionKey(protocol, ip, port, srcIp, srcPort))
 
         connection?.let {
+            connectionCount.decrementAndGet()
+            connection.cancelTimers()
+            flowCredits?.releaseAll(connection)
+            connection.releaseBuffers()
             val channel = connection.channel
             try {
                 channel?.close()
@@ -64,25 +85,36 @@ class ConnectionManager private constructor() : CloseableConnection {
     fun getConnection(
         protocol: Protocol, ip: Int, port: Int, srcIp: Int, srcPort: Int
     ): Connection? {
-        val key = Connection.getConnectionKey(protocol, ip, port, srcIp, srcPort)
-        return getConnectionByKey(key)
+        //每个数据包都会查找，不创建对象
+        return table[Connection.flowAddresses(srcIp, ip), Connection.flowPorts(protocol, srcPort, port)]
     }
 
-    fun getConnectionByKey(key: String?): Connection? {
-        return table[key]
+    /**
+     * 新建连接前调用，连接总数已达上限时淘汰本循环最久未活动的连接。
+     * 其他循环的连接只能由其NIO线程关闭，本循环没有连接可淘汰或多个循环同时新建时会少量超出上限
+     */
+    private fun ensureCapacity() {
+        while (connectionCount.get() >= maxConnections) {
+            val eldest = table.eldest() ?: return
+            Log.w(TAG, "connection table full, evicting $eldest")
+            IoStats.evicted()
+            evictionListener?.invoke(eldest)
+            //已在关闭中的连接不会被监听器再次关闭，确保从表中删除
+            closeConnection(eldest)
+        }
     }
 
     /**
      * 创建tcp连接
      */
     fun createTCPConnection(ip: Int, port: Int, srcIp: Int, srcPort: Int): Connection {
-        val key = Connection.getConnectionKey(Protocol.TCP, ip, port, srcIp, srcPort)
-        val existingConnection: Connection? = table[key]
+        val existingConnection: Connection? = getConnection(Protocol.TCP, ip, port, srcIp, srcPort)
         if (existingConnection != null) {
             return existingConnection
         }
+        ensureCapacity()
 
-        val connection = Connection(Protocol.TCP, srcIp, srcPort, ip, port, this)
+        val connection = Connection(Protocol.TCP, srcIp, srcPort, ip, port, this, bufferPool, uploadCredits)
 
         val channel: SocketChannel = SocketChannel.open()
         channel.socket().keepAlive = true
@@ -91,7 +123,7 @@ class ConnectionManager private constructor() : CloseableConnection {
         channel.socket().receiveBufferSize = Constant.MAX_RECEIVE_BUFFER_SIZE
         channel.configureBlocking(false)
 
-        Log.d(TAG, "created new SocketChannel for $key")
+        Log.d(TAG, "created new SocketChannel for " + Connection.getConnectionKey(Protocol.TCP, ip, port, srcIp, srcPort))
 
         protect(channel.socket())
 
@@ -117,19 +149,19 @@ class ConnectionManager private constructor() : CloseableConnection {
             }
         }
 
-        table[key] = connection
+        table.put(connection)
+        connectionCount.incrementAndGet()
         return connection
     }
 
 
     @Throws(IOException::class)
     fun createUDPConnection(ip: Int, port: Int, srcIp: Int, srcPort: Int): Connection {
-        val keys = Connection.getConnectionKey(Protocol.UDP, ip, port, srcIp, srcPort)
-
-        val existingConnection: Connection? = table[keys]
+        val existingConnection: Connection? = getConnection(Protocol.UDP, ip, port, srcIp, srcPort)
         if (existingConnection != null) return existingConnection
+        ensureCapacity()
 
-        val connection = Connection(Protocol.UDP, srcIp, srcPort, ip, port, this)
+        val connection = Connection(Protocol.UDP, srcIp, srcPort, ip, port, this, bufferPool, uploadCredits)
         val channel: DatagramChannel = DatagramChannel.open()
         channel.socket().soTimeout = 0
         channel.configureBlocking(false)
@@ -141,7 +173,8 @@ class ConnectionManager private constructor() : CloseableConnection {
         val socketAddress: SocketAddress = InetSocketAddress(ips, port)
         channel.connect(socketAddress)
         connection.isConnected = channel.isConnected
-        table[keys] = connection
+        table.put(connection)
+        connectionCount.incrementAndGet()
 
         return connection
     }
@@ -150,17 +183,25 @@ class ConnectionManager private constructor() : CloseableConnection {
      * 添加来自客户端的数据，该数据稍后将在接收到PSH标志时发送到目的服务器。
      */
     fun addClientData(buffer: ByteBuffer, session: Connection): Int {
-        return if (buffer.limit() <= buffer.position()) 0 else session.setSendingData(buffer)
+        if (buffer.limit() <= buffer.position()) return 0
+        if (session.protocol == Protocol.TCP) {
+            //只接收通告窗口内的数据，超出的部分不确认，由客户端重传
+            val free = session.receiveBufferFree()
+            if (buffer.remaining() > free) {
+                val limit = buffer.limit()
+                buffer.limit(buffer.position() + free)
+                val added = session.setSendingData(buffer)
+                buffer.limit(limit)
+                return added
+            }
+        }
+        return session.setSendingData(buffer)
     }
 
     /**
-     * 阻止java垃圾收集器收集会话
+     * 记录连接的活动，用于连接表满时的LRU淘汰。已关闭的连接不会被重新放入连接表
      */
     fun keepSessionAlive(connection: Connection) {
-        val key = Connection.getConnectionKey(
-            connection.protocol, connection.destinationIp, connection.destinationPort,
-            connection.sourceIp, connection.sourcePort
-        )
-        table[key] = connection
+        table.touch(connection)
     }
 }
\ No newline at end of file
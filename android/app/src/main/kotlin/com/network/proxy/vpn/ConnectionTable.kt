@@ -0,0 +1,179 @@
+package com.network.proxy.vpn
+
+/**
+ * 以五元组为键的开放寻址哈希表。
+ *
+ * 五元组打包成两个long：[Connection.flowAddresses]（源IP和目的IP）与[Connection.flowPorts]（协议和两个端口），
+ * 平行数组线性探测，删除时回移后续元素而不留墓碑，查找不创建任何对象。
+ * 连接同时串在一条按最近活动排序的双向链表上，表满时淘汰最久未活动的连接。
+ *
+ * 每个事件循环一张表，只由该循环的NIO线程访问，不加锁。
+ */
+class ConnectionTable(initialCapacity: Int = 256) {
+    companion object {
+        /**
+         * 五元组的64位哈希（MurmurHash3的fmix64），端口和地址的低位变化都能扩散到所有位。
+         * 连接表取低位作索引，事件循环分片取高位
+         */
+        @JvmStatic
+        fun hash(addressKey: Long, portKey: Long): Long {
+            var h = addressKey * -0x61c8864680b583ebL + portKey
+            h = (h xor (h ushr 33)) * -0xae502812aa7333L
+            h = (h xor (h ushr 33)) * -0x3b314601e57a13adL
+            return h xor (h ushr 33)
+        }
+    }
+
+    private var addresses: LongArray
+    private var ports: LongArray
+    private var connections: Array<Connection?>
+    private var mask: Int
+
+    var size = 0
+        private set
+
+    //LRU链表，链表指针保存在连接中
+    private var eldest: Connection? = null
+    private var youngest: Connection? = null
+
+    init {
+        var capacity = 16
+        while (capacity < initialCapacity) capacity = capacity shl 1
+        addresses = LongArray(capacity)
+        ports = LongArray(capacity)
+        connections = arrayOfNulls(capacity)
+        mask = capacity - 1
+    }
+
+    operator fun get(addressKey: Long, portKey: Long): Connection? {
+        var i = indexFor(addressKey, portKey)
+        while (true) {
+            val connection = connections[i] ?: return null
+            if (addresses[i] == addressKey && ports[i] == portKey) {
+                return connection
+            }
+            i = (i + 1) and mask
+        }
+    }
+
+    /**
+     * 放入连接，已有相同五元组的连接时替换
+     */
+    fun put(connection: Connection) {
+        val addressKey = connection.flowAddresses
+        val portKey = connection.flowPorts
+        var i = indexFor(addressKey, portKey)
+        while (connections[i] != null) {
+            if (addresses[i] == addressKey && ports[i] == portKey) {
+                unlinkLru(connections[i]!!)
+                connections[i] = connection
+                linkLru(connection)
+                return
+            }
+            i = (i + 1) and mask
+        }
+        addresses[i] = addressKey
+        ports[i] = portKey
+        connections[i] = connection
+        linkLru(connection)
+        //负载因子不超过1/2，探测链保持很短
+        if (++size > (mask + 1) shr 1) {
+            resize()
+        }
+    }
+
+    fun remove(addressKey: Long, portKey: Long): Connection? {
+        var i = indexFor(addressKey, portKey)
+        while (true) {
+            val connection = connections[i] ?: return null
+            if (addresses[i] == addressKey && ports[i] == portKey) {
+                deleteAt(i)
+                unlinkLru(connection)
+                size--
+                return connection
+            }
+            i = (i + 1) and mask
+        }
+    }
+
+    /**
+     * 连接有活动时移到LRU链表末尾；已从表中删除的连接不会被重新放入
+     */
+    fun touch(connection: Connection) {
+        if (youngest === connection || get(connection.flowAddresses, connection.flowPorts) !== connection) {
+            return
+        }
+        unlinkLru(connection)
+        linkLru(connection)
+    }
+
+    /**
+     * 最久未活动的连接
+     */
+    fun eldest(): Connection? = eldest
+
+    private fun linkLru(connection: Connection) {
+        connection.lruPrev = youngest
+        connection.lruNext = null
+        youngest?.lruNext = connection
+        youngest = connection
+        if (eldest == null) {
+            eldest = connection
+        }
+    }
+
+    private fun unlinkLru(connection: Connection) {
+        val prev = connection.lruPrev
+        val next = connection.lruNext
+        if (prev == null) eldest = next else prev.lruNext = next
+        if (next == null) youngest = prev else next.lruPrev = prev
+        connection.lruPrev = null
+        connection.lruNext = null
+    }
+
+    /**
+     * 删除后把同一探测链上后面的元素回移，保证查找不会在空槽处提前结束
+     */
+    private fun deleteAt(index: Int) {
+        var hole = index
+        var i = (index + 1) and mask
+        while (true) {
+            val connection = connections[i] ?: break
+            val home = indexFor(addresses[i], ports[i])
+            //home不在(hole, i]区间内时，元素可以移到空洞
+            if ((i - home and mask) >= (i - hole and mask)) {
+                addresses[hole] = addresses[i]
+                ports[hole] = ports[i]
+                connections[hole] = connection
+                hole = i
+            }
+            i = (i + 1) and mask
+        }
+        connections[hole] = null
+    }
+
+    private fun resize() {
+        val oldAddresses = addresses
+        val oldPorts = ports
+        val oldConnections = connections
+        val capacity = oldConnections.size shl 1
+        addresses = LongArray(capacity)
+        ports = LongArray(capacity)
+        connections = arrayOfNulls(capacity)
+        mask = capacity - 1
+        for (j in oldConnections.indices) {
+            val connection = oldConnections[j] ?: continue
+            var i = indexFor(oldAddresses[j], oldPorts[j])
+            while (connections[i] != null) {
+                i = (i + 1) and mask
+            }
+            addresses[i] = oldAddresses[j]
+            ports[i] = oldPorts[j]
+            connections[i] = connection
+        }
+    }
+
+    private fun indexFor(addressKey: Long, portKey: Long): Int {
+        return hash(addressKey, portKey).toInt() and mask
+    }
+}
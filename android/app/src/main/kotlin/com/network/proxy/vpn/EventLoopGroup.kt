@@ -0,0 +1,128 @@
+package com.network.proxy.vpn
+
+import android.util.Log
+import com.network.proxy.vpn.socket.BufferPool
+import com.network.proxy.vpn.socket.ClientPacketWriter
+import com.network.proxy.vpn.socket.FlowCredits
+import com.network.proxy.vpn.socket.SocketNIODataService
+import com.network.proxy.vpn.socket.UploadCredits
+import com.network.proxy.vpn.transport.protocol.IP4HeaderView
+import java.net.InetSocketAddress
+import java.nio.ByteBuffer
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * 一组NIO事件循环，每个循环在自己的线程上运行，拥有独立的Selector、缓冲池、时间轮、
+ * 连接表和数据包处理器。VPN线程按五元组的哈希把数据包分配给固定的循环，
+ * 同一条流始终由同一个循环处理，循环之间不共享连接状态，多条流的读写和组包可以分摊到多个核心。
+ *
+ * 上下行额度和连接数上限是全局的，由所有循环共享，流量集中在少数循环时也能用满。
+ * VPN线程读入TUN数据包时还不知道所属的循环，因此TUN数据包的缓冲池也由所有循环共享。
+ *
+ * TUN写线程由所有循环共享，它的队列本身支持多生产者。
+ *
+ * @param size 事件循环数量
+ * @param mtu TUN的MTU，决定通告给客户端的MSS
+ * @param directIo socket读写使用直接缓冲区
+ */
+class EventLoopGroup(
+    size: Int,
+    writer: ClientPacketWriter,
+    proxyAddress: InetSocketAddress,
+    mtu: Int,
+    directIo: Boolean
+) {
+    companion object {
+        const val TAG = "EventLoopGroup"
+
+        //更多的循环对手机上的流量已没有收益
+        private const val MAX_EVENT_LOOPS = 4
+
+        /**
+         * 默认的循环数量：CPU核数减去VPN读线程和TUN写线程，至少一个
+         */
+        @JvmStatic
+        fun defaultSize(): Int {
+            return (Runtime.getRuntime().availableProcessors() - 2).coerceIn(1, MAX_EVENT_LOOPS)
+        }
+    }
+
+    private class EventLoop(val service: SocketNIODataService, val thread: Thread)
+
+    private val loops: Array<EventLoop>
+
+    /**
+     * TUN数据包的缓冲池，由所有循环共享。VPN线程直接读入从中借用的缓冲区，处理完后由所属循环归还
+     */
+    val packetPool = BufferPool(directIo)
+
+    //分片时解析报头的视图，仅由VPN线程访问
+    private val ipView = IP4HeaderView()
+
+    //所有循环共享的额度和连接计数
+    private val flowCredits = FlowCredits()
+    private val uploadCredits = UploadCredits()
+    private val connectionCount = AtomicInteger()
+
+    init {
+        require(size > 0) { "event loop count must be positive: $size" }
+        loops = Array(size) { i ->
+            val service = SocketNIODataService(writer, directIo, flowCredits, packetPool)
+            val manager = ConnectionManager().apply {
+                //流量转发到代理地址
+                this.proxyAddress = proxyAddress
+                this.flowCredits = this@EventLoopGroup.flowCredits
+                this.uploadCredits = this@EventLoopGroup.uploadCredits
+                this.connectionCount = this@EventLoopGroup.connectionCount
+                this.bufferPool = service.bufferPool
+                this.evictionListener = service::evict
+            }
+            service.setPacketHandler(ConnectionHandler(manager, service, writer, mtu))
+            EventLoop(service, Thread(service, "Socket NIO thread $i"))
+        }
+        Log.i(TAG, "$size event loops")
+    }
+
+    fun start() {
+        for (loop in loops) {
+            loop.thread.start()
+        }
+    }
+
+    fun shutdown() {
+        for (loop in loops) {
+            loop.service.shutdown()
+            loop.thread.interrupt()
+        }
+        Log.i(TAG, "shutdown, packet pool ${packetPool.stats()}, ${uploadCredits.bufferedBytes()} upload bytes buffered")
+    }
+
+    /**
+     * 数据包所属流的事件循环。不是合法IPv4报文的数据包交给第一个循环，由其处理器记录并丢弃
+     */
+    fun serviceFor(packet: ByteBuffer): SocketNIODataService {
+        if (loops.size == 1 || !ipView.wrap(packet, packet.position())) {
+            return loops[0].service
+        }
+        val addressKey = Connection.flowAddresses(ipView.sourceIP, ipView.destinationIP)
+        val protocol = when (ipView.protocol.toInt()) {
+            6 -> Protocol.TCP
+            17 -> Protocol.UDP
+            else -> null
+        }
+        val portOffset = ipView.payloadOffset
+        //ICMP等没有端口的协议只按地址分配
+        val portKey = if (protocol != null && packet.limit() - portOffset >= 4) {
+            Connection.flowPorts(
+                protocol,
+                packet.getShort(portOffset).toInt() and 0xFFFF,
+                packet.getShort(portOffset + 2).toInt() and 0xFFFF
+            )
+        } else {
+            0L
+        }
+        //取哈希的高32位，连接表用低位作索引，同一循环内的连接不会集中在表的部分槽位
+        val hash = (ConnectionTable.hash(addressKey, portKey) ushr 32).toInt()
+        return loops[(hash and Int.MAX_VALUE) % loops.size].service
+    }
+}
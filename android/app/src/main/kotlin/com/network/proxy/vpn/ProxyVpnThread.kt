@@ -1,10 +1,14 @@
 package com.network.proxy.vpn
 
 import android.os.ParcelFileDescriptor
+import android.system.ErrnoException
+import android.system.Os
+import android.system.OsConstants
+import android.system.StructPollfd
 import android.util.Log
 import com.network.proxy.ProxyVpnService.Companion.MAX_PACKET_LEN
 import com.network.proxy.vpn.socket.ClientPacketWriter
-import com.network.proxy.vpn.socket.SocketNIODataService
+import com.network.proxy.vpn.socket.IoStats
 import java.io.FileInputStream
 import java.io.FileOutputStream
 import java.io.InterruptedIOException
@@ -13,16 +17,28 @@ import java.nio.ByteBuffer
 
 
 /**
- * VPN线程，负责处理VPN接收到的数据包
+ * VPN线程，负责从TUN读取数据包并按流分配给NIO事件循环处理，连接状态只由所属循环的NIO线程访问
+ * @param mtu TUN的MTU，决定读缓冲区大小和通告给客户端的MSS
+ * @param directIo TUN和socket读写使用直接缓冲区，数据只跨越一次JNI边界
+ * @param eventLoops NIO事件循环数量，默认按CPU核数
  * @author wanghongen
  */
 class ProxyVpnThread(
     vpnInterface: ParcelFileDescriptor,
     proxyHost: String,
     proxyPort: Int,
+    private val mtu: Int = MAX_PACKET_LEN,
+    private val directIo: Boolean = true,
+    eventLoops: Int = EventLoopGroup.defaultSize(),
 ) : Thread("Vpn thread") {
     companion object {
         const val TAG = "ProxyVpnThread"
+
+        //每次唤醒最多批量读取的数据包数量
+        private const val BATCH_SIZE = 64
+
+        //批量读取缓冲区的总大小，MTU较大时相应减少批量数量
+        private const val BATCH_BYTES = BATCH_SIZE * MAX_PACKET_LEN
     }
 
     @Volatile
@@ -35,46 +51,48 @@ class ProxyVpnThread(
     private val vpnPacketWriter = ClientPacketWriter(vpnWriteStream)
     private val vpnPacketWriterThread = Thread(vpnPacketWriter)
 
-    // Background service & task for non-blocking socket
-    private val nioService = SocketNIODataService(vpnPacketWriter)
-    private val dataServiceThread = Thread(nioService, "Socket NIO thread")
+    // Background event loops for non-blocking sockets, each owning the flows hashed to it
+    private val eventLoopGroup = EventLoopGroup(
+        eventLoops, vpnPacketWriter, InetSocketAddress(proxyHost, proxyPort), mtu, directIo
+    )
 
-    private val manager = ConnectionManager.instance.apply {
-        //流量转发到代理地址
-        this.proxyAddress = InetSocketAddress(proxyHost, proxyPort)
-    }
+    private var currentThread: Thread? = null
 
-    private val handler = ConnectionHandler(manager, nioService, vpnPacketWriter)
+    // 唤醒管道，停止时向写端写入一个字节，使阻塞在poll上的VPN线程立即返回
+    private val wakeupPipe = Os.pipe()
 
-    private var currentThread: Thread? = null
+    private val tunPollFd = StructPollfd().apply {
+        fd = vpnInterface.fileDescriptor
+        events = OsConstants.POLLIN.toShort()
+    }
+    private val wakeupPollFd = StructPollfd().apply {
+        fd = wakeupPipe[0]
+        events = OsConstants.POLLIN.toShort()
+    }
+    private val pollFds = arrayOf(tunPollFd, wakeupPollFd)
+
+    // 每次唤醒后批量读取的数据包缓冲区，从共享的缓冲池借用，读入数据后原样交给事件循环，空位下次读取前补充
+    private val batch = arrayOfNulls<ByteBuffer>((BATCH_BYTES / mtu).coerceIn(4, BATCH_SIZE))
 
     override fun run() {
         Log.i(TAG, "Vpn thread starting")
         currentThread = currentThread()
-        dataServiceThread.start()
+        eventLoopGroup.start()
         vpnPacketWriterThread.start()
 
-        val readBuffer = ByteBuffer.allocate(MAX_PACKET_LEN)
+        IoStats.reset()
         running = true
         while (running) {
             try {
-                val length = vpnReadChannel.read(readBuffer)
-
-                if (length > 0) {
-                    try {
-                        readBuffer.flip()
-                        handler.handlePacket(readBuffer)
-                    } catch (e: Exception) {
-                        val errorMessage = (e.message ?: e.toString())
-                        Log.e(TAG, errorMessage, e)
-                    }
-
-                    readBuffer.clear()
-                } else {
-                    sleep(50)
+                if (!awaitReadable()) {
+                    continue
+                }
+
+                val count = readBatch()
+                for (i in 0 until count) {
+                    submit(batch[i]!!)
+                    batch[i] = null
                 }
-            } catch (e: InterruptedException) {
-                Log.i(TAG, "Sleep interrupted: " + e.message)
             } catch (e: InterruptedIOException) {
                 Log.i(TAG, "Read interrupted: " + e.message)
             } catch (e: Exception) {
@@ -87,19 +105,94 @@ class ProxyVpnThread(
             }
         }
 
+        releaseBatch()
+        closeWakeupPipe()
         Log.i(TAG, "Vpn thread stop")
     }
 
+    /**
+     * 阻塞等待TUN可读或被唤醒，不再轮询休眠
+     * @return TUN是否有数据可读
+     */
+    private fun awaitReadable(): Boolean {
+        try {
+            Os.poll(pollFds, -1)
+        } catch (e: ErrnoException) {
+            if (e.errno == OsConstants.EINTR) return false
+            throw e
+        }
+
+        if (wakeupPollFd.revents.toInt() != 0) {
+            return false
+        }
+
+        val revents = tunPollFd.revents.toInt()
+        if (revents and (OsConstants.POLLERR or OsConstants.POLLHUP) != 0) {
+            Log.i(TAG, "VPN interface closed")
+            running = false
+            return false
+        }
+        return revents and OsConstants.POLLIN != 0
+    }
+
+    /**
+     * 非阻塞地读取当前所有可用的数据包，直到没有数据或批次已满
+     * @return 读取到的数据包数量
+     */
+    private fun readBatch(): Int {
+        var count = 0
+        while (count < batch.size) {
+            val readBuffer = batch[count] ?: eventLoopGroup.packetPool.acquire(mtu).also { batch[count] = it }
+            val length = vpnReadChannel.read(readBuffer)
+            if (length <= 0) {
+                break
+            }
+
+            IoStats.syscall(directIo, length)
+            readBuffer.flip()
+            count++
+        }
+        return count
+    }
+
+    /**
+     * 交给数据包所属的事件循环，不拷贝，由该循环处理完后归还缓冲池
+     */
+    private fun submit(packet: ByteBuffer) {
+        eventLoopGroup.serviceFor(packet).submit(packet)
+    }
+
+    private fun releaseBatch() {
+        for (i in batch.indices) {
+            batch[i]?.let { eventLoopGroup.packetPool.release(it) }
+            batch[i] = null
+        }
+    }
+
+    private fun closeWakeupPipe() {
+        for (fd in wakeupPipe) {
+            try {
+                Os.close(fd)
+            } catch (e: ErrnoException) {
+                Log.w(TAG, "Failed to close wakeup pipe", e)
+            }
+        }
+    }
+
     @Synchronized
     fun stopThread() {
         if (running) {
             running = false
-            nioService.shutdown()
-            dataServiceThread.interrupt()
+            eventLoopGroup.shutdown()
 
             vpnPacketWriter.shutdown()
             vpnPacketWriterThread.interrupt()
-            currentThread?.interrupt()
+            try {
+                Os.write(wakeupPipe[1], byteArrayOf(1), 0, 1)
+            } catch (e: Exception) {
+                Log.w(TAG, "Failed to wake up vpn thread", e)
+                currentThread?.interrupt()
+            }
         }
     }
 
@@ -0,0 +1,85 @@
+package com.network.proxy.vpn.socket
+
+import java.nio.ByteBuffer
+
+/**
+ * 有界的分级缓冲池，NIO读写路径从中借用缓冲区，用完后归还，避免每次读写事件都分配新的ByteBuffer。
+ *
+ * 每个大小级别最多缓存固定数量的空闲缓冲区，超过最大级别的请求直接分配且不回收。
+ * [direct]为true时分配直接缓冲区，系统调用无需经过JDK的临时缓冲区中转。
+ */
+class BufferPool(val direct: Boolean = false) {
+    companion object {
+        //大小级别，最大级别覆盖 Constant.MAX_RECEIVE_BUFFER_SIZE
+        private val SIZE_CLASSES = intArrayOf(2 * 1024, 16 * 1024, 64 * 1024)
+
+        //每个级别最多缓存的空闲缓冲区数量，小缓冲区用于排队中的数据包，数量较多
+        private val MAX_FREE_BUFFERS = intArrayOf(256, 32, 8)
+    }
+
+    data class Stats(val hits: Long, val misses: Long, val outstanding: Int, val pooled: Int)
+
+    private val freeLists = Array(SIZE_CLASSES.size) { ArrayDeque<ByteBuffer>(MAX_FREE_BUFFERS[it]) }
+
+    private var hits = 0L
+    private var misses = 0L
+    private var outstanding = 0
+
+    /**
+     * 借用一个容量不小于size的缓冲区，返回时position为0，limit为size
+     */
+    @Synchronized
+    fun acquire(size: Int): ByteBuffer {
+        outstanding++
+        val sizeClass = sizeClassOf(size)
+        if (sizeClass < 0) {
+            misses++
+            return allocate(size)
+        }
+
+        val buffer = freeLists[sizeClass].removeLastOrNull()
+        if (buffer == null) {
+            misses++
+            return allocate(SIZE_CLASSES[sizeClass]).apply { limit(size) }
+        }
+
+        hits++
+        buffer.clear()
+        buffer.limit(size)
+        return buffer
+    }
+
+    /**
+     * 归还缓冲区，池已满或容量不属于任何级别时丢弃，交给GC回收
+     */
+    @Synchronized
+    fun release(buffer: ByteBuffer) {
+        outstanding--
+        val sizeClass = SIZE_CLASSES.indexOf(buffer.capacity())
+        if (sizeClass < 0) {
+            return
+        }
+        val freeList = freeLists[sizeClass]
+        if (freeList.size < MAX_FREE_BUFFERS[sizeClass]) {
+            freeList.addLast(buffer)
+        }
+    }
+
+    @Synchronized
+    fun stats(): Stats {
+        return Stats(hits, misses, outstanding, freeLists.sumOf { it.size })
+    }
+
+    private fun sizeClassOf(size: Int): Int {
+        for (i in SIZE_CLASSES.indices) {
+            if (size <= SIZE_CLASSES[i]) {
+                return i
+            }
+        }
+        return -1
+    }
+
+    private fun allocate(size: Int): ByteBuffer {
+        return if (direct) ByteBuffer.allocateDirect(size) else ByteBuffer.allocate(size)
+    }
+}
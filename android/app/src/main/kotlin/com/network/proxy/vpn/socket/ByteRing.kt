@@ -0,0 +1,115 @@
+package com.network.proxy.vpn.socket
+
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.channels.GatheringByteChannel
+
+/**
+ * 由缓冲池中定长块组成的字节队列，用作连接发往上游的发送缓冲区。
+ *
+ * 追加写入尾块，写满再借一块；读取从头块消费，消费完的块立即归还缓冲池，
+ * 追加和消费都不移动已有数据，空闲的连接不持有任何块。
+ * 每个块处于读模式：position为读位置，limit为写位置。
+ *
+ * 只由NIO线程访问。
+ */
+class ByteRing(private val pool: BufferPool, private val chunkSize: Int = CHUNK_SIZE) {
+    companion object {
+        //与缓冲池的16KB级别一致，一次64KB的上游读取只占4块
+        const val CHUNK_SIZE = 16 * 1024
+    }
+
+    private val chunks = ArrayDeque<ByteBuffer>()
+
+    //聚集写时复用的块视图数组
+    private var views = arrayOfNulls<ByteBuffer>(8)
+
+    var size = 0
+        private set
+
+    fun isEmpty(): Boolean = size == 0
+
+    /**
+     * 追加src中剩余的全部数据
+     */
+    fun write(src: ByteBuffer): Int {
+        val length = src.remaining()
+        while (src.hasRemaining()) {
+            val tail = writableTail()
+            val readPosition = tail.position()
+            tail.position(tail.limit())
+            tail.limit(tail.capacity())
+            val n = minOf(src.remaining(), tail.remaining())
+            if (n == src.remaining()) {
+                tail.put(src)
+            } else {
+                val limit = src.limit()
+                src.limit(src.position() + n)
+                tail.put(src)
+                src.limit(limit)
+            }
+            tail.limit(tail.position())
+            tail.position(readPosition)
+        }
+        size += length
+        IoStats.copied(length)
+        return length
+    }
+
+    /**
+     * 将缓冲的数据直接从各块聚集写入channel，不经过中转数组，写入的部分被消费
+     *
+     * @return 写入的字节数，channel缓冲区已满时可能小于[size]
+     */
+    @Throws(IOException::class)
+    fun writeTo(channel: GatheringByteChannel): Long {
+        if (chunks.size > views.size) {
+            views = arrayOfNulls(maxOf(views.size shl 1, chunks.size))
+        }
+        for (i in chunks.indices) {
+            views[i] = chunks[i]
+        }
+        val count = chunks.size
+        val written = try {
+            channel.write(views, 0, count)
+        } finally {
+            views.fill(null, 0, count)
+        }
+        if (written > 0) {
+            size -= written.toInt()
+            while (chunks.isNotEmpty() && !chunks.first().hasRemaining()) {
+                releaseConsumedHead()
+            }
+        }
+        return written
+    }
+
+    /**
+     * 丢弃全部数据，归还所有块
+     */
+    fun clear() {
+        while (chunks.isNotEmpty()) {
+            pool.release(chunks.removeFirst())
+        }
+        size = 0
+    }
+
+    private fun writableTail(): ByteBuffer {
+        val tail = chunks.lastOrNull()
+        if (tail != null && tail.limit() < tail.capacity()) {
+            return tail
+        }
+        //缓冲池返回的块limit为请求的大小，置为读模式的空块
+        val chunk = pool.acquire(chunkSize)
+        chunk.limit(0)
+        chunks.addLast(chunk)
+        return chunk
+    }
+
+    private fun releaseConsumedHead() {
+        val head = chunks.first()
+        if (!head.hasRemaining()) {
+            pool.release(chunks.removeFirst())
+        }
+    }
+}
@@ -1,46 +1,296 @@
 package com.network.proxy.vpn.socket
 
+import android.system.ErrnoException
+import android.system.Os
+import android.system.OsConstants
+import android.system.StructPollfd
 import android.util.Log
 import java.io.FileOutputStream
 import java.io.IOException
-import java.util.concurrent.BlockingDeque
-import java.util.concurrent.LinkedBlockingDeque
+import java.nio.ByteBuffer
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.locks.LockSupport
 import kotlin.concurrent.Volatile
 
+/**
+ * 将响应数据包写回TUN。NIO线程和ICMP线程作为生产者写入[PacketRing]，写线程作为唯一消费者，
+ * 每次唤醒后批量取出队列中的数据包依次写出，队列为空时挂起等待生产者唤醒。
+ *
+ * 数据包分为控制和数据两条通道：ACK、SYN-ACK、RST、FIN等控制包优先于下载数据写出，
+ * 避免大流量下载时新连接握手和确认包排在大量数据之后。
+ *
+ * TUN文件描述符是非阻塞的，内核发送队列满时write返回0，此时poll等待可写后重试，数据包不丢弃。
+ */
 class ClientPacketWriter(private val clientWriter: FileOutputStream) : Runnable {
     companion object {
         private const val TAG: String = "ClientPacketWriter"
-        private const val MAX_PACKET_LEN = 32767
+        //IP报头总长度字段的上限，配置的MTU最大为此值
+        private const val MAX_PACKET_LEN = 65535
+
+        //各通道队列容量，超过后生产者短暂等待写线程腾出空间
+        private const val CONTROL_QUEUE_CAPACITY = 1024
+        private const val BULK_QUEUE_CAPACITY = 4096
+
+        //每次唤醒最多写出的数据包数量
+        private const val DRAIN_BATCH = 64
+
+        //两条通道都有积压时，每写出多少个控制包让出一个数据包
+        const val DEFAULT_CONTROL_WEIGHT = 8
+
+        private const val OFFER_BACKOFF_NANOS = 50_000L
+
+        //等待TUN可写的单次poll超时，超时后检查是否已停止再继续等待
+        private const val WRITABLE_POLL_MILLIS = 10
+
+        //写出出错后的退避，避免描述符异常时空转
+        private const val WRITE_ERROR_BACKOFF_NANOS = 10_000_000L
+    }
+
+    enum class Lane {
+        //ACK、SYN-ACK、RST、FIN及ICMP响应
+        CONTROL,
+
+        //下载数据和UDP响应
+        BULK
+    }
+
+    data class LaneStats(
+        val packets: Long,
+        val depth: Int,
+        val maxDepth: Int,
+        val queueFull: Long,
+        val avgWaitMicros: Long,
+        val maxWaitMicros: Long
+    )
+
+    data class Stats(val batches: Long, val control: LaneStats, val bulk: LaneStats)
+
+    /**
+     * 单条通道的队列及排队统计，统计只由写线程更新（queueFull除外）
+     */
+    private class LaneQueue(capacity: Int) {
+        val ring = PacketRing(capacity)
+        val queueFull = AtomicLong()
+        var packets = 0L
+        var maxDepth = 0
+        var totalWaitNanos = 0L
+        var maxWaitNanos = 0L
+
+        fun poll(now: Long): Any? {
+            val depth = ring.size()
+            if (depth > maxDepth) maxDepth = depth
+
+            val packet = ring.poll() ?: return null
+            val wait = now - ring.lastEnqueueNanos
+            packets++
+            totalWaitNanos += wait
+            if (wait > maxWaitNanos) maxWaitNanos = wait
+            return packet
+        }
+
+        fun stats(): LaneStats {
+            return LaneStats(
+                packets, ring.size(), maxDepth, queueFull.get(),
+                if (packets == 0L) 0 else totalWaitNanos / packets / 1000,
+                maxWaitNanos / 1000
+            )
+        }
     }
 
     @Volatile
     private var shutdown = false
 
-    private val packetQueue: BlockingDeque<ByteArray> = LinkedBlockingDeque()
+    /**
+     * 两条通道都有积压时，每写出多少个控制包让出一个数据包，0表示控制通道严格优先
+     */
+    @Volatile
+    var controlWeight = DEFAULT_CONTROL_WEIGHT
+
+    private val vpnChannel = clientWriter.channel
+    private val writablePollFds = arrayOf(StructPollfd().apply {
+        fd = clientWriter.fd
+        events = OsConstants.POLLOUT.toShort()
+    })
 
-    fun write(data: ByteArray) {
+    //ByteArray 或 SegmentBuffer
+    private val controlQueue = LaneQueue(CONTROL_QUEUE_CAPACITY)
+    private val bulkQueue = LaneQueue(BULK_QUEUE_CAPACITY)
+
+    @Volatile
+    private var consumer: Thread? = null
+    private val parked = AtomicBoolean()
+
+    private var batches = 0L
+
+    //连续写出的控制包数量
+    private var controlStreak = 0
+
+    @JvmOverloads
+    fun write(data: ByteArray, lane: Lane = Lane.CONTROL) {
         if (data.size > MAX_PACKET_LEN) throw Error("Packet too large")
-        packetQueue.addLast(data)
+        enqueue(data, lane)
+    }
+
+    /**
+     * 写入下行的TCP报文段或UDP数据包（缓冲区position到limit之间），写出后释放调用方交给写线程的引用，
+     * 引用归零时缓冲区归还其所属事件循环的缓冲池。直接缓冲区通过FileChannel写出，不经过JDK的临时缓冲区。
+     */
+    @JvmOverloads
+    fun write(segment: SegmentBuffer, lane: Lane = Lane.BULK) {
+        if (segment.buffer.remaining() > MAX_PACKET_LEN) throw Error("Packet too large")
+        enqueue(segment, lane)
     }
 
     fun shutdown() {
         this.shutdown = true
+        LockSupport.unpark(consumer)
+    }
+
+    fun stats(): Stats {
+        return Stats(batches, controlQueue.stats(), bulkQueue.stats())
+    }
+
+    private fun enqueue(packet: Any, lane: Lane) {
+        val queue = if (lane == Lane.CONTROL) controlQueue else bulkQueue
+        if (!queue.ring.offer(packet)) {
+            //队列已满，生产者退避等待，不丢弃数据包
+            queue.queueFull.incrementAndGet()
+            signal()
+            while (!queue.ring.offer(packet)) {
+                if (shutdown) {
+                    release(packet)
+                    return
+                }
+                LockSupport.parkNanos(OFFER_BACKOFF_NANOS)
+            }
+        }
+        signal()
+    }
+
+    private fun signal() {
+        if (parked.get() && parked.compareAndSet(true, false)) {
+            LockSupport.unpark(consumer)
+        }
     }
 
     override fun run() {
+        consumer = Thread.currentThread()
         while (!this.shutdown && clientWriter.channel.isOpen) {
-            try {
-                val data: ByteArray = this.packetQueue.take()
-                try {
-                    this.clientWriter.write(data)
-                } catch (e: IOException) {
-                    Log.e(TAG, "Error writing $shutdown data.length bytes to the VPN")
-                    e.printStackTrace()
-//                    this.packetQueue.addFirst(data) // Put the data back, so it's resent
-                    Thread.sleep(10) // Add an arbitrary tiny pause, in case that helps
-                }
-            } catch (ignored: InterruptedException) {
+            if (writeBatch() == 0) {
+                awaitPackets()
+                continue
+            }
+            batches++
+        }
+
+        Log.i(TAG, "Client packet writer stopped ${stats()}")
+    }
+
+    /**
+     * 每写出一个数据包后重新选择通道，写出过程中到达的控制包可以立即插队
+     * @return 写出的数据包数量
+     */
+    private fun writeBatch(): Int {
+        var count = 0
+        while (count < DRAIN_BATCH) {
+            val packet = next() ?: break
+            writePacket(packet)
+            count++
+        }
+        return count
+    }
+
+    private fun next(): Any? {
+        val now = System.nanoTime()
+        val weight = controlWeight
+        if (weight > 0 && controlStreak >= weight) {
+            val packet = bulkQueue.poll(now)
+            controlStreak = 0
+            if (packet != null) return packet
+        }
+
+        val control = controlQueue.poll(now)
+        if (control != null) {
+            controlStreak++
+            return control
+        }
+        controlStreak = 0
+        return bulkQueue.poll(now)
+    }
+
+
+    private fun awaitPackets() {
+        parked.set(true)
+        val empty = controlQueue.ring.isEmpty() && bulkQueue.ring.isEmpty()
+        if (empty && !shutdown) {
+            LockSupport.park(this)
+        } else if (!empty) {
+            //生产者已占用槽位但尚未发布
+            Thread.yield()
+        }
+        parked.set(false)
+        //清除中断标记，避免下次park立即返回
+        Thread.interrupted()
+    }
+
+    /**
+     * TUN每次write对应一个IP数据包，不能用writev合并写出，因此批量取出后逐个写出
+     */
+    private fun writePacket(packet: Any) {
+        try {
+            val buffer = if (packet is SegmentBuffer) packet.buffer else ByteBuffer.wrap(packet as ByteArray)
+            val length = buffer.remaining()
+            if (writeFully(buffer)) {
+                IoStats.forwarded(length)
+                IoStats.syscall(buffer.isDirect, length)
+            }
+        } catch (e: IOException) {
+            Log.e(TAG, "Error writing packet to the VPN", e)
+            LockSupport.parkNanos(WRITE_ERROR_BACKOFF_NANOS)
+        } finally {
+            release(packet)
+        }
+    }
+
+    /**
+     * 写出整个数据包，发送队列满时等待可写
+     * @return 停止或描述符已失效时返回false，数据包未写出
+     */
+    private fun writeFully(buffer: ByteBuffer): Boolean {
+        while (buffer.hasRemaining()) {
+            if (vpnChannel.write(buffer) > 0) {
+                continue
+            }
+            if (shutdown || !awaitWritable()) {
+                return false
             }
         }
+        return true
+    }
+
+    private fun awaitWritable(): Boolean {
+        val pollFd = writablePollFds[0]
+        try {
+            if (Os.poll(writablePollFds, WRITABLE_POLL_MILLIS) == 0) {
+                return true
+            }
+        } catch (e: ErrnoException) {
+            if (e.errno == OsConstants.EINTR) return true
+            Log.e(TAG, "Poll for VPN writability failed", e)
+            return false
+        }
+        val revents = pollFd.revents.toInt()
+        if (revents and (OsConstants.POLLERR or OsConstants.POLLHUP or OsConstants.POLLNVAL) != 0) {
+            Log.w(TAG, "VPN interface not writable, revents=$revents")
+            return false
+        }
+        return true
+    }
+
+    private fun release(packet: Any) {
+        if (packet is SegmentBuffer) {
+            packet.release()
+        }
     }
 }
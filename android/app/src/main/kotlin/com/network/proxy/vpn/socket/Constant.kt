@@ -2,4 +2,39 @@ package com.network.proxy.vpn.socket
 
 object Constant {
     const val MAX_RECEIVE_BUFFER_SIZE = 65535
+
+    //通告给客户端的接收窗口，即每个连接最多缓冲的上行字节数，所有连接合计另受UploadCredits限制
+    const val RECEIVE_WINDOW_SIZE = 256 * 1024
+
+    //客户端支持窗口扩大时使用的扩大因子，RECEIVE_WINDOW_SIZE右移后须能放入16位窗口字段
+    const val RECEIVE_WINDOW_SCALE = 5
+
+    //直通转发时上行数据攒够此字节数即写往上游
+    const val UPSTREAM_COALESCE_BYTES = 1024
+
+    //不足UPSTREAM_COALESCE_BYTES的小报文段最多等待的时间（毫秒）
+    const val UPSTREAM_COALESCE_DELAY_MILLIS = 5L
+
+    //延迟ACK的最长等待时间（毫秒），RFC 1122要求不超过500ms
+    const val DELAYED_ACK_MILLIS = 40L
+
+    //已建立的TCP连接的空闲超时，RFC 5382要求不少于2小时4分钟
+    const val TCP_IDLE_TIMEOUT_MILLIS = 7_440_000L
+
+    //尚未建立或正在关闭的TCP连接的空闲超时，RFC 5382建议4分钟
+    const val TCP_TRANSITORY_TIMEOUT_MILLIS = 240_000L
+
+    //UDP会话的空闲超时，RFC 4787要求不少于2分钟
+    const val UDP_IDLE_TIMEOUT_MILLIS = 120_000L
+
+    //DNS查询的UDP会话在应答后很少复用，空闲超时短于其他UDP会话
+    const val DNS_IDLE_TIMEOUT_MILLIS = 10_000L
+
+    const val DNS_PORT = 53
+
+    //连接上游的超时
+    const val CONNECT_TIMEOUT_MILLIS = 30_000L
+
+    //连接表的上限，超出时淘汰最久未活动的连接。较旧的Android上进程的文件描述符上限为1024，须留出余量
+    const val MAX_CONNECTIONS = 768
 }
\ No newline at end of file
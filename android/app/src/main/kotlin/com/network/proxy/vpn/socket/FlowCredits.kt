@@ -0,0 +1,130 @@
+package com.network.proxy.vpn.socket
+
+import com.network.proxy.vpn.Connection
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * 下行方向的流量额度。从上游读取、尚未被客户端确认的字节数（包括等待发送窗口和排队写入TUN的数据），
+ * 每个连接以及全局都有上限，超过上限时NIO线程暂停读取上游socket，
+ * 客户端确认后归还额度，降到低水位时通知NIO线程恢复读取。
+ * 所有事件循环共享同一个实例，全局上限对所有连接生效，低水位时通知每个循环。
+ *
+ * @param connectionLimit 单个连接最多缓冲的字节数
+ * @param globalLimit 所有连接合计最多缓冲的字节数
+ */
+class FlowCredits(
+    private val connectionLimit: Int = DEFAULT_CONNECTION_LIMIT,
+    private val globalLimit: Long = DEFAULT_GLOBAL_LIMIT
+) {
+    companion object {
+        const val DEFAULT_CONNECTION_LIMIT = 256 * 1024
+        const val DEFAULT_GLOBAL_LIMIT = 4L * 1024 * 1024
+    }
+
+    data class Stats(
+        val queuedBytes: Long,
+        val pausedConnections: Int,
+        val pauses: Long,
+        val resumes: Long
+    )
+
+    //低水位，额度降到此值以下才恢复读取，避免频繁暂停和恢复
+    private val connectionLowWater = connectionLimit / 2
+    private val globalLowWater = globalLimit / 2
+
+    private val queuedBytes = AtomicLong()
+    private val pausedConnections = AtomicInteger()
+    private val pauses = AtomicLong()
+    private val resumes = AtomicLong()
+
+    //额度降到低水位时回调，每个NIO服务注册一个，在归还额度的线程中调用
+    private val resumeListeners = CopyOnWriteArrayList<Runnable>()
+
+    fun addResumeListener(listener: Runnable) {
+        resumeListeners.add(listener)
+    }
+
+    /**
+     * 连接是否还有额度从上游读取
+     */
+    fun canRead(connection: Connection): Boolean {
+        return connection.clientQueuedBytes.get() < connectionLimit && queuedBytes.get() < globalLimit
+    }
+
+    /**
+     * 连接还能从上游读取的字节数，取连接和全局剩余额度的较小值
+     */
+    fun readable(connection: Connection): Int {
+        val connectionRemaining = connectionLimit - connection.clientQueuedBytes.get()
+        val globalRemaining = globalLimit - queuedBytes.get()
+        return minOf(connectionRemaining.toLong(), globalRemaining).coerceAtLeast(0).toInt()
+    }
+
+    /**
+     * 暂停后的连接是否已降到低水位，可以恢复读取
+     */
+    fun canResume(connection: Connection): Boolean {
+        return connection.clientQueuedBytes.get() <= connectionLowWater && queuedBytes.get() <= globalLowWater
+    }
+
+    /**
+     * 从上游读取数据后占用额度
+     */
+    fun acquire(connection: Connection, length: Int) {
+        connection.clientQueuedBytes.addAndGet(length)
+        queuedBytes.addAndGet(length.toLong())
+    }
+
+    /**
+     * 数据被客户端确认后归还额度，越过低水位且有连接暂停时通知恢复
+     */
+    fun release(connection: Connection, length: Int) {
+        val connectionQueued = connection.clientQueuedBytes.addAndGet(-length)
+        val globalQueued = queuedBytes.addAndGet(-length.toLong())
+        if (pausedConnections.get() == 0) {
+            return
+        }
+
+        val connectionCrossed = connection.isReadPaused &&
+                connectionQueued <= connectionLowWater && connectionQueued + length > connectionLowWater
+        val globalCrossed = globalQueued <= globalLowWater && globalQueued + length > globalLowWater
+        if (connectionCrossed || globalCrossed) {
+            notifyResume()
+        }
+    }
+
+    /**
+     * 连接关闭时归还其占用的全部额度
+     */
+    fun releaseAll(connection: Connection) {
+        val queued = connection.clientQueuedBytes.getAndSet(0)
+        if (queued > 0) {
+            val globalQueued = queuedBytes.addAndGet(-queued.toLong())
+            if (pausedConnections.get() > 0 && globalQueued <= globalLowWater) {
+                notifyResume()
+            }
+        }
+    }
+
+    private fun notifyResume() {
+        for (listener in resumeListeners) {
+            listener.run()
+        }
+    }
+
+    fun paused() {
+        pausedConnections.incrementAndGet()
+        pauses.incrementAndGet()
+    }
+
+    fun resumed() {
+        pausedConnections.decrementAndGet()
+        resumes.incrementAndGet()
+    }
+
+    fun stats(): Stats {
+        return Stats(queuedBytes.get(), pausedConnections.get(), pauses.get(), resumes.get())
+    }
+}
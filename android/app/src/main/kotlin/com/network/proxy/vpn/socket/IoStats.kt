@@ -0,0 +1,131 @@
+package com.network.proxy.vpn.socket
+
+import com.network.proxy.vpn.Protocol
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * 数据拷贝统计，用于对比堆缓冲区与直接缓冲区两种I/O模式下每转发一个字节所产生的拷贝字节数。
+ *
+ * 拷贝包括Java层的显式拷贝，以及使用堆缓冲区做系统调用时JDK通过临时直接缓冲区产生的隐式拷贝。
+ * 另外统计写往TUN的纯ACK数、延迟ACK合并掉的ACK数、下行数据的重传次数，以及被回收的连接数。
+ */
+object IoStats {
+    private val forwardedBytes = AtomicLong()
+    private val copiedBytes = AtomicLong()
+    private val pureAcks = AtomicLong()
+    private val suppressedAcks = AtomicLong()
+    private val retransmissions = AtomicLong()
+    private val retransmitTimeouts = AtomicLong()
+    private val idleTcpReaped = AtomicLong()
+    private val idleUdpReaped = AtomicLong()
+    private val idleDnsReaped = AtomicLong()
+    private val connectTimeouts = AtomicLong()
+    private val evictions = AtomicLong()
+
+    /**
+     * 记录写出到TUN或上游socket的字节数
+     */
+    @JvmStatic
+    fun forwarded(length: Int) {
+        forwardedBytes.addAndGet(length.toLong())
+    }
+
+    /**
+     * 记录一次负载拷贝
+     */
+    @JvmStatic
+    fun copied(length: Int) {
+        copiedBytes.addAndGet(length.toLong())
+    }
+
+    /**
+     * 使用堆缓冲区做系统调用时，JDK会经由临时直接缓冲区多拷贝一次。
+     * 这次拷贝发生在JDK内部，这里按缓冲区类型推算记账，并非实际观测
+     */
+    @JvmStatic
+    fun syscall(direct: Boolean, length: Int) {
+        if (!direct && length > 0) {
+            copied(length)
+        }
+    }
+
+    /**
+     * 记录一次写往TUN的纯ACK
+     *
+     * @param suppressed 延迟ACK因此省去的ACK数，见[com.network.proxy.vpn.Connection.ackSent]
+     */
+    @JvmStatic
+    fun pureAck(suppressed: Int) {
+        pureAcks.incrementAndGet()
+        suppressedAcks.addAndGet(suppressed.toLong())
+    }
+
+    /**
+     * 记录一次重传，包括快速重传和超时重传
+     */
+    @JvmStatic
+    fun retransmitted() {
+        retransmissions.incrementAndGet()
+    }
+
+    @JvmStatic
+    fun retransmitTimedOut() {
+        retransmitTimeouts.incrementAndGet()
+    }
+
+    /**
+     * 记录一个因空闲超时回收的连接
+     */
+    @JvmStatic
+    fun idleReaped(protocol: Protocol, dns: Boolean) {
+        when {
+            protocol == Protocol.TCP -> idleTcpReaped.incrementAndGet()
+            dns -> idleDnsReaped.incrementAndGet()
+            else -> idleUdpReaped.incrementAndGet()
+        }
+    }
+
+    @JvmStatic
+    fun connectTimedOut() {
+        connectTimeouts.incrementAndGet()
+    }
+
+    /**
+     * 记录一个因连接表已满被淘汰的连接
+     */
+    @JvmStatic
+    fun evicted() {
+        evictions.incrementAndGet()
+    }
+
+    @JvmStatic
+    fun copiesPerForwardedByte(): Double {
+        val forwarded = forwardedBytes.get()
+        return if (forwarded == 0L) 0.0 else copiedBytes.get().toDouble() / forwarded
+    }
+
+    @JvmStatic
+    fun reset() {
+        forwardedBytes.set(0)
+        copiedBytes.set(0)
+        pureAcks.set(0)
+        suppressedAcks.set(0)
+        retransmissions.set(0)
+        retransmitTimeouts.set(0)
+        idleTcpReaped.set(0)
+        idleUdpReaped.set(0)
+        idleDnsReaped.set(0)
+        connectTimeouts.set(0)
+        evictions.set(0)
+    }
+
+    override fun toString(): String {
+        return "IoStats{forwarded=${forwardedBytes.get()}, copied=${copiedBytes.get()}, " +
+                "copiesPerForwardedByte=${"%.2f".format(copiesPerForwardedByte())}, " +
+                "pureAcks=${pureAcks.get()}, suppressedAcks=${suppressedAcks.get()}, " +
+                "retransmissions=${retransmissions.get()}, retransmitTimeouts=${retransmitTimeouts.get()}, " +
+                "idleTcpReaped=${idleTcpReaped.get()}, idleUdpReaped=${idleUdpReaped.get()}, " +
+                "idleDnsReaped=${idleDnsReaped.get()}, connectTimeouts=${connectTimeouts.get()}, " +
+                "evictions=${evictions.get()}}"
+    }
+}
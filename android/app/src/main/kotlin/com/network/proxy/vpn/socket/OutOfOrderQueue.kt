@@ -0,0 +1,71 @@
+package com.network.proxy.vpn.socket
+
+import com.network.proxy.vpn.util.SequenceNumber
+import java.nio.ByteBuffer
+
+/**
+ * 客户端上行方向超前到达的报文段，按序列号排序缓存，等空洞填补后按序交付到发送缓冲区。
+ *
+ * 只由NIO线程访问。
+ *
+ * @param maxSegments 最多缓存的报文段数，超出时丢弃新到的报文段，由客户端重传
+ */
+class OutOfOrderQueue(private val maxSegments: Int = DEFAULT_MAX_SEGMENTS) {
+    companion object {
+        const val DEFAULT_MAX_SEGMENTS = 64
+    }
+
+    private class Segment(val sequence: Long, val payload: ByteArray)
+
+    private val segments = ArrayList<Segment>()
+
+    //缓存的字节数
+    var size = 0
+        private set
+
+    fun isEmpty(): Boolean = segments.isEmpty()
+
+    /**
+     * 缓存超前的报文段，复制data中剩余的数据。
+     *
+     * @return false 队列已满，或已缓存了相同序列号且不短于它的报文段
+     */
+    fun offer(sequence: Long, data: ByteBuffer): Boolean {
+        var index = segments.size
+        while (index > 0 && SequenceNumber.gt(segments[index - 1].sequence, sequence)) {
+            index--
+        }
+        val length = data.remaining()
+        if (index > 0) {
+            val previous = segments[index - 1]
+            if (SequenceNumber.ge(SequenceNumber.add(previous.sequence, previous.payload.size),
+                    SequenceNumber.add(sequence, length))) {
+                //已被前一个报文段完整覆盖
+                return false
+            }
+        }
+        if (segments.size >= maxSegments) {
+            return false
+        }
+
+        val payload = ByteArray(length)
+        data.get(payload)
+        IoStats.copied(length)
+        segments.add(index, Segment(sequence, payload))
+        size += length
+        return true
+    }
+
+    fun firstSequence(): Long = segments[0].sequence
+
+    fun firstPayload(): ByteArray = segments[0].payload
+
+    fun removeFirst() {
+        size -= segments.removeAt(0).payload.size
+    }
+
+    fun clear() {
+        segments.clear()
+        size = 0
+    }
+}
@@ -0,0 +1,10 @@
+package com.network.proxy.vpn.socket
+
+import java.nio.ByteBuffer
+
+/**
+ * 处理从TUN读取的数据包，由NIO线程调用，返回后数据包归还缓冲池
+ */
+fun interface PacketHandler {
+    fun handlePacket(packet: ByteBuffer)
+}
@@ -0,0 +1,82 @@
+package com.network.proxy.vpn.socket
+
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * 有界的多生产者/单消费者环形队列，在线程之间传递数据包：VPN线程交给NIO线程的请求包，以及待写出到TUN的响应包。
+ *
+ * 每个槽位带有一个序号，生产者通过CAS抢占尾指针后写入槽位并发布序号，消费者按序号判断槽位是否就绪，
+ * 入队出队均不加锁，也不为每个数据包分配链表节点。同时记录每个数据包的入队时间，用于统计排队延迟。
+ */
+class PacketRing(capacity: Int) {
+    //向上取整为2的幂，至少为2：容量为1时发布后的序号与消费后的序号相同，无法区分槽位状态
+    private val capacity = maxOf(2, Integer.highestOneBit(capacity - 1) shl 1)
+    private val mask = (this.capacity - 1).toLong()
+
+    private val items = arrayOfNulls<Any>(this.capacity)
+    private val enqueueTimes = LongArray(this.capacity)
+    private val sequences = AtomicLongArray(this.capacity).apply {
+        for (i in 0 until length()) lazySet(i, i.toLong())
+    }
+
+    private val tail = AtomicLong()
+    private val head = AtomicLong()
+
+    /**
+     * 最近一次[poll]出队的数据包的入队时间，只能由消费者线程读取
+     */
+    var lastEnqueueNanos = 0L
+        private set
+
+    /**
+     * 生产者入队
+     * @return 队列已满时返回false
+     */
+    fun offer(item: Any): Boolean {
+        var position = tail.get()
+        while (true) {
+            val index = (position and mask).toInt()
+            val diff = sequences.get(index) - position
+            if (diff == 0L) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    items[index] = item
+                    enqueueTimes[index] = System.nanoTime()
+                    sequences.lazySet(index, position + 1)
+                    return true
+                }
+                position = tail.get()
+            } else if (diff < 0) {
+                return false
+            } else {
+                position = tail.get()
+            }
+        }
+    }
+
+    /**
+     * 消费者出队，队列为空或队首槽位尚未发布时返回null
+     */
+    fun poll(): Any? {
+        val position = head.get()
+        val index = (position and mask).toInt()
+        if (sequences.get(index) != position + 1) {
+            return null
+        }
+
+        val item = items[index]
+        lastEnqueueNanos = enqueueTimes[index]
+        items[index] = null
+        sequences.lazySet(index, position + capacity)
+        head.lazySet(position + 1)
+        return item
+    }
+
+    fun size(): Int {
+        return (tail.get() - head.get()).coerceIn(0, capacity.toLong()).toInt()
+    }
+
+    fun isEmpty(): Boolean = size() == 0
+
+    fun capacity(): Int = capacity
+}
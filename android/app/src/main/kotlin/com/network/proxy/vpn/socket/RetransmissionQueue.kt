@@ -0,0 +1,197 @@
+package com.network.proxy.vpn.socket
+
+import com.network.proxy.vpn.util.SequenceNumber
+
+/**
+ * 已发送给客户端但尚未确认的报文段，按序列号顺序保存，用于超时重传和快速重传。
+ *
+ * 报文段元数据（序列号、已确认字节数、发送时间、是否重传过、本轮恢复中是否已重传、是否被SACK）
+ * 保存在环形的并行数组中，容量不足时翻倍扩容。SACK标记构成重传的记分板，丢包恢复时只重传空洞。
+ * 队列持有每个[SegmentBuffer]的一个引用，完全确认后释放。只由NIO线程访问。
+ */
+class RetransmissionQueue(initialCapacity: Int = 16) {
+    private var sequences = LongArray(initialCapacity)
+    private var sendTimes = LongArray(initialCapacity)
+    private var retransmitted = BooleanArray(initialCapacity)
+    //本轮丢包恢复中已重传，超时后清除，空洞可以再次重传；retransmitted保留，仍按Karn算法不采样
+    private var resent = BooleanArray(initialCapacity)
+    private var sacked = BooleanArray(initialCapacity)
+    private var segments = arrayOfNulls<SegmentBuffer>(initialCapacity)
+
+    //部分确认的字节数，重传时仍发送完整的报文段，由客户端丢弃重复的部分
+    private var ackedBytes = IntArray(initialCapacity)
+
+    private var head = 0
+    var size = 0
+        private set
+
+    //最近一次[acknowledge]得到的RTT样本（毫秒），没有有效样本时为-1
+    var rttSample = -1L
+        private set
+
+    //被SACK的最高序列号（右边界），没有SACK时无意义
+    var highestSacked = 0L
+        private set
+    var hasSacked = false
+        private set
+
+    fun isEmpty(): Boolean = size == 0
+
+    /**
+     * 记录新发送的报文段，接管调用方对segment的引用
+     */
+    fun add(sequence: Long, segment: SegmentBuffer, now: Long) {
+        if (size == sequences.size) {
+            grow()
+        }
+        val index = (head + size) % sequences.size
+        sequences[index] = sequence
+        sendTimes[index] = now
+        retransmitted[index] = false
+        resent[index] = false
+        sacked[index] = false
+        segments[index] = segment
+        ackedBytes[index] = 0
+        size++
+    }
+
+    /**
+     * 移除被ackNumber确认的报文段，部分确认的报文段记录已确认的字节数。
+     * 按Karn算法，只有未重传过的报文段才产生RTT样本
+     *
+     * @return 被确认的字节数
+     */
+    fun acknowledge(ackNumber: Long, now: Long): Int {
+        rttSample = -1
+        var acked = 0
+        while (size > 0) {
+            val segment = segments[head]!!
+            val sequence = sequences[head]
+            val end = SequenceNumber.add(sequence, segment.payloadLength)
+            if (SequenceNumber.ge(ackNumber, end)) {
+                if (!retransmitted[head]) {
+                    rttSample = now - sendTimes[head]
+                }
+                acked += segment.payloadLength - ackedBytes[head]
+                segment.release()
+                segments[head] = null
+                head = (head + 1) % sequences.size
+                size--
+                if (size == 0) {
+                    hasSacked = false
+                }
+            } else {
+                val partial = SequenceNumber.diff(ackNumber, sequence)
+                if (partial > ackedBytes[head]) {
+                    acked += partial - ackedBytes[head]
+                    ackedBytes[head] = partial
+                }
+                break
+            }
+        }
+        return acked
+    }
+
+    /**
+     * 标记[start, end)范围内完整覆盖的报文段已被客户端SACK
+     */
+    fun markSacked(start: Long, end: Long) {
+        for (i in 0 until size) {
+            val index = (head + i) % sequences.size
+            val sequence = sequences[index]
+            if (SequenceNumber.ge(sequence, end)) {
+                break
+            }
+            if (SequenceNumber.ge(sequence, start) &&
+                SequenceNumber.le(SequenceNumber.add(sequence, segments[index]!!.payloadLength), end)) {
+                sacked[index] = true
+            }
+        }
+        if (!hasSacked || SequenceNumber.gt(end, highestSacked)) {
+            highestSacked = end
+            hasSacked = true
+        }
+    }
+
+    /**
+     * 超时后丢弃SACK信息（客户端可能反悔，RFC 2018）并结束本轮恢复，从最早的报文段开始重传，
+     * 之后的空洞可以再次重传
+     */
+    fun clearSacked() {
+        for (i in 0 until size) {
+            val index = (head + i) % sequences.size
+            sacked[index] = false
+            resent[index] = false
+        }
+        hasSacked = false
+    }
+
+    /**
+     * 报文段是否是空洞：未被SACK，且其后有被SACK的数据
+     */
+    fun isHole(i: Int): Boolean {
+        val index = (head + i) % sequences.size
+        return hasSacked && !sacked[index] && SequenceNumber.lt(sequences[index], highestSacked)
+    }
+
+    fun sequenceAt(i: Int): Long = sequences[(head + i) % sequences.size]
+
+    fun segmentAt(i: Int): SegmentBuffer = segments[(head + i) % sequences.size]!!
+
+    fun isRetransmitted(i: Int): Boolean = retransmitted[(head + i) % sequences.size]
+
+    /**
+     * 本轮恢复中是否已重传，[clearSacked]后重新计算
+     */
+    fun isResent(i: Int): Boolean = resent[(head + i) % sequences.size]
+
+    /**
+     * 标记报文段已重传，之后不再用于RTT采样
+     */
+    fun markRetransmitted(i: Int, now: Long) {
+        val index = (head + i) % sequences.size
+        retransmitted[index] = true
+        resent[index] = true
+        sendTimes[index] = now
+    }
+
+    fun clear() {
+        for (i in 0 until size) {
+            val index = (head + i) % segments.size
+            segments[index]!!.release()
+            segments[index] = null
+        }
+        head = 0
+        size = 0
+        hasSacked = false
+    }
+
+    private fun grow() {
+        val capacity = sequences.size * 2
+        val newSequences = LongArray(capacity)
+        val newSendTimes = LongArray(capacity)
+        val newRetransmitted = BooleanArray(capacity)
+        val newResent = BooleanArray(capacity)
+        val newSacked = BooleanArray(capacity)
+        val newSegments = arrayOfNulls<SegmentBuffer>(capacity)
+        val newAckedBytes = IntArray(capacity)
+        for (i in 0 until size) {
+            val index = (head + i) % sequences.size
+            newSequences[i] = sequences[index]
+            newSendTimes[i] = sendTimes[index]
+            newRetransmitted[i] = retransmitted[index]
+            newResent[i] = resent[index]
+            newSacked[i] = sacked[index]
+            newSegments[i] = segments[index]
+            newAckedBytes[i] = ackedBytes[index]
+        }
+        sequences = newSequences
+        sendTimes = newSendTimes
+        retransmitted = newRetransmitted
+        resent = newResent
+        sacked = newSacked
+        segments = newSegments
+        ackedBytes = newAckedBytes
+        head = 0
+    }
+}
@@ -0,0 +1,51 @@
+package com.network.proxy.vpn.socket
+
+/**
+ * RFC 6298 往返时间估计与重传超时计算，单位毫秒
+ */
+class RttEstimator {
+    companion object {
+        const val INITIAL_RTO = 1000L
+
+        //TUN上的往返时间很短，下限采用Linux的200ms而不是RFC建议的1s
+        const val MIN_RTO = 200L
+        const val MAX_RTO = 60_000L
+
+        //时钟粒度
+        private const val CLOCK_GRANULARITY = 10L
+    }
+
+    var srtt = 0L
+        private set
+    var rttvar = 0L
+        private set
+    var rto = INITIAL_RTO
+        private set
+
+    private var hasSample = false
+
+    fun sample(rtt: Long) {
+        if (rtt < 0) return
+        if (!hasSample) {
+            srtt = rtt
+            rttvar = rtt / 2
+            hasSample = true
+        } else {
+            //RTTVAR = 3/4 RTTVAR + 1/4 |SRTT - R'|, SRTT = 7/8 SRTT + 1/8 R'
+            rttvar = (3 * rttvar + Math.abs(srtt - rtt)) / 4
+            srtt = (7 * srtt + rtt) / 8
+        }
+        rto = (srtt + maxOf(CLOCK_GRANULARITY, 4 * rttvar)).coerceIn(MIN_RTO, MAX_RTO)
+    }
+
+    /**
+     * 超时后指数退避
+     */
+    fun backoff() {
+        rto = minOf(rto * 2, MAX_RTO)
+    }
+
+    override fun toString(): String {
+        return "RttEstimator{srtt=$srtt, rttvar=$rttvar, rto=$rto}"
+    }
+}
@@ -0,0 +1,54 @@
+package com.network.proxy.vpn.socket
+
+import java.nio.ByteBuffer
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * 下行TCP报文段的数据包缓冲区。上游数据直接读入[payloadOffset]处，前面预留IP和TCP报头的空间，
+ * 发送和重传时就地写入报头后整个交给TUN写线程，负载不再拷贝。
+ *
+ * 缓冲区在等待客户端确认期间由重传队列持有，写往TUN期间写线程另持有一个引用，
+ * 引用计数归零后归还缓冲池。下行UDP数据包和没有负载的TCP控制包也以此交给写线程，只有写线程的一个引用。
+ */
+class SegmentBuffer(val buffer: ByteBuffer, val payloadOffset: Int, private val pool: BufferPool) {
+    var payloadLength = 0
+
+    //上游一次读取的最后一个报文段，发送时带PSH
+    var isPsh = false
+
+    private val refs = AtomicInteger(1)
+
+    fun retain() {
+        refs.incrementAndGet()
+    }
+
+    fun release() {
+        if (refs.decrementAndGet() == 0) {
+            pool.release(buffer)
+        }
+    }
+
+    /**
+     * 仍在TUN写线程的队列中，此时报头不能改写，报文段也尚未到达客户端
+     */
+    fun isWriting(): Boolean = refs.get() > 1
+
+    /**
+     * 负载的前length字节留在本报文段，其余部分拷贝到新的报文段。只用于对端窗口不足一个报文段时
+     */
+    fun split(length: Int): SegmentBuffer {
+        val rest = payloadLength - length
+        val tail = SegmentBuffer(pool.acquire(payloadOffset + rest), payloadOffset, pool)
+        val source = buffer.duplicate()
+        source.limit(payloadOffset + payloadLength)
+        source.position(payloadOffset + length)
+        tail.buffer.position(payloadOffset)
+        tail.buffer.put(source)
+        tail.payloadLength = rest
+        tail.isPsh = isPsh
+        payloadLength = length
+        isPsh = false
+        IoStats.copied(rest)
+        return tail
+    }
+}
@@ -7,9 +7,11 @@ import android.util.Log;
 import com.network.proxy.vpn.Connection;
 import com.network.proxy.vpn.TagKt;
 import com.network.proxy.vpn.transport.protocol.IP4Header;
+import com.network.proxy.vpn.transport.protocol.PacketEncoder;
 import com.network.proxy.vpn.transport.protocol.TCPHeader;
 import com.network.proxy.vpn.transport.protocol.TCPPacketFactory;
-import com.network.proxy.vpn.transport.protocol.UDPPacketFactory;
+import com.network.proxy.vpn.util.PacketUtil;
+import com.network.proxy.vpn.util.SequenceNumber;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -32,12 +34,30 @@ class SocketChannelReader {
 
     private final ClientPacketWriter writer;
 
-    public SocketChannelReader(ClientPacketWriter writer) {
+    private final BufferPool bufferPool;
+
+    private final FlowCredits flowCredits;
+
+    // Give up on a connection whose oldest segment timed out this many times in a row
+    private static final int MAX_RETRANSMISSIONS = 8;
+
+    // At most this many segment buffers are filled by one scattering read, and no more than
+    // MAX_RECEIVE_BUFFER_SIZE in total
+    private static final int READ_SEGMENTS = 16;
+
+    // Buffers for the next scattering read, only touched by the NIO thread. Filled buffers move
+    // into segments, the ones a read left empty stay here for the next pass and the next connection
+    private final ByteBuffer[] readBuffers = new ByteBuffer[READ_SEGMENTS];
+
+    public SocketChannelReader(ClientPacketWriter writer, BufferPool bufferPool, FlowCredits flowCredits) {
         this.writer = writer;
+        this.bufferPool = bufferPool;
+        this.flowCredits = flowCredits;
     }
 
     public void read(Connection connection) {
         AbstractSelectableChannel channel = connection.getChannel();
+        connection.setLastActive(PacketUtil.INSTANCE.getElapsedMillis());
 
         if (channel instanceof SocketChannel) {
             readTCP(connection);
@@ -48,32 +68,40 @@ class SocketChannelReader {
         }
 
         // Resubscribe to reads, so that we're triggered again if more data arrives later.
-        connection.subscribeKey(SelectionKey.OP_READ);
+        // Paused connections are re-armed by the NIO service once the client acknowledges data.
+        if (connection.wantsRead()) {
+            connection.subscribeKey(SelectionKey.OP_READ);
+        }
 
-        if (connection.isAbortingConnection()) {
-            Log.d(TAG, "removing aborted connection -> " + connection);
-            connection.cancelKey();
-            if (channel instanceof SocketChannel) {
-                try {
-                    SocketChannel socketChannel = (SocketChannel) channel;
-                    if (socketChannel.isConnected()) {
-                        socketChannel.close();
-                    }
-                } catch (IOException e) {
-                    Log.e(TAG, e.toString());
+        if (connection.isAbortingConnection() && channel.isOpen()) {
+            closeAborted(connection);
+        }
+    }
+
+    void closeAborted(Connection connection) {
+        AbstractSelectableChannel channel = connection.getChannel();
+        Log.d(TAG, "removing aborted connection -> " + connection);
+        connection.cancelKey();
+        if (channel instanceof SocketChannel) {
+            try {
+                SocketChannel socketChannel = (SocketChannel) channel;
+                if (socketChannel.isConnected()) {
+                    socketChannel.close();
                 }
-            } else {
-                try {
-                    DatagramChannel datagramChannel = (DatagramChannel) channel;
-                    if (datagramChannel.isConnected()) {
-                        datagramChannel.close();
-                    }
-                } catch (IOException e) {
-                    e.printStackTrace();
+            } catch (IOException e) {
+                Log.e(TAG, e.toString());
+            }
+        } else {
+            try {
+                DatagramChannel datagramChannel = (DatagramChannel) channel;
+                if (datagramChannel.isConnected()) {
+                    datagramChannel.close();
                 }
+            } catch (IOException e) {
+                e.printStackTrace();
             }
-            connection.closeConnection();
         }
+        connection.closeConnection();
     }
 
     private void readTCP(@NonNull Connection connection) {
@@ -82,22 +110,32 @@ class SocketChannelReader {
         }
 
         SocketChannel channel = (SocketChannel) connection.getChannel();
-        ByteBuffer buffer = ByteBuffer.allocate(Constant.MAX_RECEIVE_BUFFER_SIZE);
-        int len;
+        // Headroom for the headers, so they can be written in front of the payload later
+        int payloadOffset = PacketEncoder.tcpPayloadOffset(PacketEncoder.FLAG_ACK, connection.getTcpOptions());
+        int segmentSize = connection.getSendSegmentSize();
+        long len;
 
         try {
             do {
-                len = channel.read(buffer);
+                // Only read what the connection's credits still admit, they cover both the
+                // client's window and the data queued behind it
+                int readable = Math.min(flowCredits.readable(connection), Constant.MAX_RECEIVE_BUFFER_SIZE);
+                int count = Math.max(1, Math.min(READ_SEGMENTS, (readable + segmentSize - 1) / segmentSize));
+                prepareReadBuffers(count, payloadOffset, payloadOffset + segmentSize);
+                len = channel.read(readBuffers, 0, count);
                 if (len > 0) { //-1 mean it reach the end of stream
-                    sendToRequester(buffer, len, connection);
-                    buffer.clear();
-                } else if (len == -1) {
-//					Log.d(TAG,"End of data from remote server, will send FIN to client");
-                    Log.d(TAG, "send FIN to: " + connection);
-                    sendFin(connection);
-                    connection.setAbortingConnection(true);
+                    IoStats.syscall(bufferPool.getDirect(), (int) len);
+                    sendToRequester(connection, count, len, payloadOffset, segmentSize);
                 }
-            } while (len > 0);
+                if (len == -1) {
+                    // End of data from remote server, the FIN follows once the buffered data is sent
+                    Log.d(TAG, "upstream closed: " + connection);
+                    connection.setFinPending(true);
+                    connection.unsubscribeKey(SelectionKey.OP_READ);
+                    pushData(connection);
+                }
+                // Stop once the connection is out of credits, the next readable event pauses it
+            } while (len > 0 && flowCredits.canRead(connection));
         } catch (NotYetConnectedException e) {
             Log.e(TAG, "socket not connected");
         } catch (ClosedByInterruptException e) {
@@ -110,72 +148,298 @@ class SocketChannelReader {
         }
     }
 
-    private void sendToRequester(ByteBuffer buffer, int dataSize, @NonNull Connection connection) {
-        // Last piece of data is usually smaller than MAX_RECEIVE_BUFFER_SIZE. We use this as a
-        // trigger to set PSH on the resulting TCP packet that goes to the VPN.
-        connection.setHasReceivedLastSegment(dataSize < Constant.MAX_RECEIVE_BUFFER_SIZE);
+    /**
+     * Make the first count read buffers ready for a read at payloadOffset. Buffers left over from
+     * earlier reads are reused as long as they hold a whole segment.
+     */
+    private void prepareReadBuffers(int count, int payloadOffset, int size) {
+        for (int i = 0; i < count; i++) {
+            ByteBuffer buffer = readBuffers[i];
+            if (buffer != null && buffer.capacity() < size) {
+                bufferPool.release(buffer);
+                buffer = null;
+            }
+            if (buffer == null) {
+                buffer = bufferPool.acquire(size);
+                readBuffers[i] = buffer;
+            }
+            buffer.clear().limit(size);
+            buffer.position(payloadOffset);
+        }
+    }
+
+    /**
+     * Queue the buffers filled by a read on the connection as segments, in order, and send what
+     * the client's window allows
+     */
+    private void sendToRequester(@NonNull Connection connection, int count, long dataSize,
+                                 int payloadOffset, int segmentSize) {
+        // A read that didn't fill every buffer drained the socket. We use this as a trigger to set
+        // PSH on the last TCP packet of the read that goes to the VPN.
+        boolean drained = dataSize < (long) count * segmentSize;
+        for (int i = 0; i < count; i++) {
+            ByteBuffer buffer = readBuffers[i];
+            int filled = buffer.position() - payloadOffset;
+            if (filled == 0) {
+                break;
+            }
+            SegmentBuffer segment = new SegmentBuffer(buffer, payloadOffset, bufferPool);
+            segment.setPayloadLength(filled);
+            boolean last = i == count - 1 || readBuffers[i + 1].position() == payloadOffset;
+            segment.setPsh(drained && last);
+            connection.addReceivedData(segment);
+            readBuffers[i] = null;
+        }
+        // Held against the connection's credits until the client acknowledges it
+        flowCredits.acquire(connection, (int) dataSize);
+        pushData(connection);
+    }
+
+    /**
+     * Return the spare read buffers to the pool when the NIO thread stops
+     */
+    void releaseReadBuffers() {
+        for (int i = 0; i < READ_SEGMENTS; i++) {
+            if (readBuffers[i] != null) {
+                bufferPool.release(readBuffers[i]);
+                readBuffers[i] = null;
+            }
+        }
+    }
+
+    /**
+     * Send as much buffered upstream data as the client's advertised window allows. The rest
+     * stays buffered until an ACK from the client opens the window again. Once the upstream has
+     * closed and everything is sent and acknowledged, the FIN follows.
+     * <p>
+     * Called by the NIO thread after reads, and when an ACK from the client arrives.
+     */
+    public void pushData(@NonNull Connection connection) {
+        int max = connection.getSendSegmentSize();
 
-        buffer.limit(dataSize);
-        buffer.flip();
-        // TODO should allocate new byte array?
-        byte[] data = new byte[dataSize];
-        System.arraycopy(buffer.array(), 0, data, 0, dataSize);
-        connection.addReceivedData(data);
-        //pushing all data to vpn client
         while (connection.hasReceivedData()) {
-            pushDataToClient(connection);
+            int available = connection.sendWindowAvailable();
+            int segment = Math.min(max, connection.receivedDataSize());
+            if (available < segment) {
+                // Avoid silly windows: only send a partial segment when nothing is in flight
+                if (available == 0 || connection.bytesInFlight() > 0) {
+                    if (connection.bytesInFlight() == 0) {
+                        // Zero window and no ACK left to reopen it: probe until the client does
+                        schedulePersist(connection);
+                    }
+                    break;
+                }
+                segment = available;
+            }
+            pushDataToClient(connection, segment);
+        }
+
+        // Closing drops the retransmission queue, so wait until the client has acknowledged everything
+        if (connection.isFinPending() && !connection.hasReceivedData()
+                && connection.getRetransmissionQueue().isEmpty() && !connection.isAbortingConnection()) {
+            Log.d(TAG, "send FIN to: " + connection);
+            sendFin(connection);
+            connection.setAbortingConnection(true);
+            closeAborted(connection);
         }
     }
 
     /**
      * create packet data and send it to VPN client
      */
-    private void pushDataToClient(@NonNull Connection connection) {
-        if (!connection.hasReceivedData()) {
-            //no data to send
-            Log.d(TAG, "no data for vpn client");
+    private void pushDataToClient(@NonNull Connection connection, int max) {
+        SegmentBuffer segment = connection.getReceivedData(max);
+        if (segment == null) {
+            return;
+        }
+        long unAck = connection.getSendNext();
+        connection.setSendNext(SequenceNumber.INSTANCE.add(unAck, segment.getPayloadLength()));
+
+        // The retransmission queue keeps the segment until the client acknowledges it
+        long now = PacketUtil.INSTANCE.getElapsedMillis();
+        // The first segment in flight replaces a running persist timer with the RTO
+        boolean firstInFlight = connection.getRetransmissionQueue().isEmpty();
+        connection.getRetransmissionQueue().add(unAck, segment, now);
+        TimingWheel.Timer retransmitTimer = connection.getRetransmitTimer();
+        if (retransmitTimer != null && (firstInFlight || !retransmitTimer.isScheduled())) {
+            retransmitTimer.schedule(connection.getRttEstimator().getRto());
         }
 
-        IP4Header ipHeader = connection.getLastIpHeader();
-        TCPHeader tcpheader = connection.getLastTcpHeader();
-        // TODO What does 60 mean?
-        int max = connection.getMaxSegmentSize() - 60;
+        // PSH marks the segment that empties the buffer of the last upstream read
+        writeSegment(connection, unAck, segment, segment.isPsh(), false, ClientPacketWriter.Lane.BULK);
+    }
 
-        if (max < 1) {
-            max = 1024;
+    /**
+     * Write the headers in place in front of the segment's payload, which the upstream read left
+     * room for, and hand the whole buffer to the writer without copying the payload. ACK, window
+     * and timestamps are always current, also for retransmissions, so pending delayed ACKs ride along.
+     * A retransmitted segment still holds the headers of its first transmission, so only the fields
+     * that changed are rewritten and the checksum is updated incrementally.
+     */
+    private void writeSegment(@NonNull Connection connection, long seq, SegmentBuffer segment, boolean isPsh,
+                              boolean retransmission, ClientPacketWriter.Lane lane) {
+        ByteBuffer packet = segment.getBuffer();
+        int length;
+        if (retransmission) {
+            int flags = PacketEncoder.FLAG_ACK | (isPsh ? PacketEncoder.FLAG_PSH : 0);
+            length = PacketEncoder.INSTANCE.refreshTcp(packet, 0, flags, connection.getRecSequence(),
+                    connection.receiveWindow(), connection.getTcpOptions(),
+                    PacketUtil.INSTANCE.getTimestampMillis(), connection.getTimestampReplyTo());
+        } else {
+            length = TCPPacketFactory.encodeResponsePacket(packet, connection.getLastIpHeader(),
+                    connection.getLastTcpHeader(), segment.getPayloadLength(), isPsh,
+                    connection.getRecSequence(), seq, connection.receiveWindow(),
+                    connection.getTcpOptions(), PacketUtil.INSTANCE.getTimestampMillis(),
+                    connection.getTimestampReplyTo());
         }
+        // The segment carries the ACK, so no delayed ACK is needed
+        connection.ackSent();
+        packet.position(0);
+        packet.limit(length);
+
+        // The writer holds its own reference until the packet is on the TUN
+        segment.retain();
+        writer.write(segment, lane);
+    }
 
-        byte[] packetBody = connection.getReceivedData(max);
-        if (packetBody != null && packetBody.length > 0) {
-            long unAck = connection.getSendNext();
-            long nextUnAck = connection.getSendNext() + packetBody.length;
-            connection.setSendNext((int) nextUnAck);
-            //we need this data later on for retransmission
-//            connection.setUnackData(packetBody);
-//            connection.setResendPacketCounter(0);
+    /**
+     * Resend the oldest unacknowledged segment, used by the retransmission timer.
+     * Retransmissions take the control lane, so they don't queue behind the bulk data the client
+     * is waiting on.
+     */
+    public void retransmit(@NonNull Connection connection) {
+        RetransmissionQueue queue = connection.getRetransmissionQueue();
+        if (queue.isEmpty() || connection.isAbortingConnection()) {
+            return;
+        }
+        retransmitSegment(connection, 0);
+    }
 
-            byte[] data = TCPPacketFactory.createResponsePacketData(ipHeader,
-                    tcpheader, packetBody, connection.getHasReceivedLastSegment(),
-                    connection.getRecSequence(), (int) unAck,
-                    connection.getTimestampSender(), connection.getTimestampReplyTo());
+    /**
+     * Loss recovery on duplicate ACKs. With SACK, resend the first hole in the scoreboard that
+     * hasn't been resent in this recovery, so one lost segment doesn't cost a whole window. Without
+     * SACK information, resend the oldest segment.
+     * <p>
+     * At most one segment goes out per duplicate ACK: each one reports a segment that has left the
+     * network, so the data in flight stays the same, like the pipe limit of RFC 6675. Later holes
+     * are resent as more duplicate ACKs arrive.
+     */
+    public void retransmitHoles(@NonNull Connection connection) {
+        RetransmissionQueue queue = connection.getRetransmissionQueue();
+        if (queue.isEmpty() || connection.isAbortingConnection()) {
+            return;
+        }
+        if (!queue.getHasSacked()) {
+            if (!queue.isResent(0)) {
+                retransmitSegment(connection, 0);
+            }
+            return;
+        }
+        for (int i = 0; i < queue.getSize(); i++) {
+            if (queue.isHole(i) && !queue.isResent(i) && retransmitSegment(connection, i)) {
+                return;
+            }
+        }
+    }
 
-            writer.write(data);
+    /**
+     * @return false if the segment is still queued for the TUN and was not resent
+     */
+    private boolean retransmitSegment(Connection connection, int index) {
+        RetransmissionQueue queue = connection.getRetransmissionQueue();
+        SegmentBuffer segment = queue.segmentAt(index);
+        if (segment.isWriting()) {
+            // Still queued for the TUN, so it can't have been lost, and its headers can't be rewritten
+            return false;
+        }
+        queue.markRetransmitted(index, PacketUtil.INSTANCE.getElapsedMillis());
+        writeSegment(connection, queue.sequenceAt(index), segment, true, true, ClientPacketWriter.Lane.CONTROL);
+        IoStats.retransmitted();
+        return true;
+    }
+
+    /**
+     * The retransmission timer expired (RFC 6298 5.4 - 5.6): resend the oldest segment, back off
+     * the RTO and restart the timer. Called by the NIO thread.
+     */
+    public void retransmitTimeout(@NonNull Connection connection) {
+        RttEstimator rttEstimator = connection.getRttEstimator();
+        TimingWheel.Timer retransmitTimer = connection.getRetransmitTimer();
+        if (connection.getRetransmissionQueue().segmentAt(0).isWriting()) {
+            // A backlogged TUN writer delays the segment, the client isn't missing it yet
+            if (retransmitTimer != null) {
+                retransmitTimer.schedule(rttEstimator.getRto());
+            }
+            return;
+        }
+
+        int count = connection.getRetransmitCount() + 1;
+        if (count > MAX_RETRANSMISSIONS) {
+            Log.w(TAG, "too many retransmissions, aborting " + connection);
+            connection.getRetransmissionQueue().clear();
+            connection.setAbortingConnection(true);
+            closeAborted(connection);
+            return;
+        }
+        connection.setRetransmitCount(count);
+        connection.setDuplicateAcks(0);
+        IoStats.retransmitTimedOut();
+        connection.getRetransmissionQueue().clearSacked();
+        retransmit(connection);
+
+        rttEstimator.backoff();
+        if (retransmitTimer != null) {
+            retransmitTimer.schedule(rttEstimator.getRto());
+        }
+    }
+
+    /**
+     * Start the persist timer, RFC 9293 3.8.6.1. It shares the retransmission timer, which is
+     * idle while nothing is in flight, and backs off from the RTO like retransmissions do.
+     */
+    private void schedulePersist(@NonNull Connection connection) {
+        TimingWheel.Timer timer = connection.getRetransmitTimer();
+        if (timer == null || timer.isScheduled()) {
+            return;
+        }
+        long timeout = connection.getRttEstimator().getRto() << Math.min(connection.getWindowProbes(), 16);
+        timer.schedule(Math.min(timeout, RttEstimator.MAX_RTO));
+    }
+
+    /**
+     * The persist timer expired with the client's window still closed: send a window probe. The
+     * client keeps getting probed for as long as it answers, a dead client is left to the idle
+     * timeout.
+     */
+    public void persistTimeout(@NonNull Connection connection) {
+        IP4Header ipHeader = connection.getLastIpHeader();
+        TCPHeader tcpHeader = connection.getLastTcpHeader();
+        if (ipHeader == null || tcpHeader == null || !connection.hasReceivedData()
+                || connection.sendWindowAvailable() > 0 || connection.bytesInFlight() > 0) {
+            return;
         }
+        SegmentBuffer data = TCPPacketFactory.createWindowProbeData(bufferPool, ipHeader, tcpHeader,
+                SequenceNumber.INSTANCE.add(connection.getSendNext(), -1), connection.getRecSequence(),
+                connection.receiveWindow(), connection.getTcpOptions(),
+                PacketUtil.INSTANCE.getTimestampMillis(), connection.getTimestampReplyTo());
+        writer.write(data, ClientPacketWriter.Lane.CONTROL);
+        connection.setWindowProbes(connection.getWindowProbes() + 1);
+        schedulePersist(connection);
     }
 
     private void sendFin(Connection connection) {
         final IP4Header ipHeader = connection.getLastIpHeader();
         final TCPHeader tcpheader = connection.getLastTcpHeader();
-        final byte[] data = TCPPacketFactory.INSTANCE.createFinData(ipHeader, tcpheader,
-                connection.getRecSequence(), connection.getSendNext(),
-                connection.getTimestampSender(), connection.getTimestampReplyTo());
+        final SegmentBuffer data = TCPPacketFactory.INSTANCE.createFinData(bufferPool, ipHeader, tcpheader,
+                connection.getRecSequence(), connection.getSendNext(), connection.getTcpOptions(),
+                PacketUtil.INSTANCE.getTimestampMillis(), connection.getTimestampReplyTo());
 
-        writer.write(data);
+        writer.write(data, ClientPacketWriter.Lane.CONTROL);
     }
 
     private void readUDP(Connection connection) {
         DatagramChannel channel = (DatagramChannel) connection.getChannel();
-        ByteBuffer buffer = ByteBuffer.allocate(Constant.MAX_RECEIVE_BUFFER_SIZE);
+        ByteBuffer buffer = bufferPool.acquire(Constant.MAX_RECEIVE_BUFFER_SIZE);
         int len;
 
         try {
@@ -186,17 +450,27 @@ class SocketChannelReader {
 
                 len = channel.read(buffer);
                 if (len > 0) {
-                    buffer.limit(len);
+                    IoStats.syscall(buffer.isDirect(), len);
                     buffer.flip();
 
-                    //create UDP packet
-                    byte[] data = new byte[len];
-                    System.arraycopy(buffer.array(), 0, data, 0, len);
-                    byte[] packetData = UDPPacketFactory.createResponsePacket(
-                            connection.getLastIpHeader(), connection.getLastUdpHeader(), data);
+                    // A datagram's size is only known once read, so it is copied once into a pooled
+                    // packet sized for it, with the headers written in front. As a segment, the writer
+                    // returns it to this loop's pool.
+                    SegmentBuffer segment = new SegmentBuffer(
+                            bufferPool.acquire(PacketEncoder.UDP_PAYLOAD_OFFSET + len),
+                            PacketEncoder.UDP_PAYLOAD_OFFSET, bufferPool);
+                    ByteBuffer packet = segment.getBuffer();
+                    packet.position(PacketEncoder.UDP_PAYLOAD_OFFSET);
+                    packet.put(buffer);
+                    IoStats.copied(len);
+                    segment.setPayloadLength(len);
+                    int length = PacketEncoder.INSTANCE.encodeUdp(packet, 0, connection.getLastIpHeader(),
+                            connection.getLastUdpHeader(), len);
+                    packet.position(0);
+                    packet.limit(length);
 
                     //write to client
-                    writer.write(packetData);
+                    writer.write(segment, ClientPacketWriter.Lane.BULK);
 
                     buffer.clear();
                 }
@@ -206,6 +480,8 @@ class SocketChannelReader {
         } catch (IOException e) {
             Log.e(TAG, "Failed to read from UDP socket, aborting connection");
             connection.setAbortingConnection(true);
+        } finally {
+            bufferPool.release(buffer);
         }
     }
 }
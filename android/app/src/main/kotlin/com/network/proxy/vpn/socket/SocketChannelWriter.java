@@ -6,11 +6,14 @@ import android.util.Log;
 
 import com.network.proxy.vpn.Connection;
 import com.network.proxy.vpn.TagKt;
+import com.network.proxy.vpn.transport.protocol.IP4Header;
+import com.network.proxy.vpn.transport.protocol.TCPHeader;
 import com.network.proxy.vpn.transport.protocol.TCPPacketFactory;
+import com.network.proxy.vpn.util.PacketUtil;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.NotYetConnectedException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
@@ -30,8 +33,11 @@ public class SocketChannelWriter {
 
 	private final ClientPacketWriter writer;
 
-	SocketChannelWriter(ClientPacketWriter writer) {
+	private final BufferPool bufferPool;
+
+	SocketChannelWriter(ClientPacketWriter writer, BufferPool bufferPool) {
 		this.writer = writer;
+		this.bufferPool = bufferPool;
 	}
 
 	public void write(@NonNull Connection connection) {
@@ -91,16 +97,17 @@ public class SocketChannelWriter {
 	private void writeTCP(Connection connection) {
 		try {
 			writePendingData(connection);
+			sendWindowUpdate(connection);
 		} catch (NotYetConnectedException ex) {
 			Log.e(TAG,"failed to write to unconnected socket: " + ex.getMessage());
 		} catch (IOException e) {
 			Log.e(TAG,"Error writing to server: " + e);
 			
 			//close connection with vpn client
-			byte[] rstData = TCPPacketFactory.INSTANCE.createRstData(
+			SegmentBuffer rstData = TCPPacketFactory.INSTANCE.createRstData(bufferPool,
 					connection.getLastIpHeader(), connection.getLastTcpHeader(), 0);
 
-			writer.write(rstData);
+			writer.write(rstData, ClientPacketWriter.Lane.CONTROL);
 
 			//remove session
 			Log.e(TAG,"failed to write to remote socket, aborting connection");
@@ -108,31 +115,51 @@ public class SocketChannelWriter {
 		}
 	}
 
+	/**
+	 * Draining to the upstream freed receive buffer space, so reopen the window advertised to the
+	 * client instead of waiting for its next segment (which may never come on a zero window).
+	 */
+	private void sendWindowUpdate(Connection connection) {
+		if (connection.needsWindowUpdate()) {
+			sendAck(connection);
+		}
+	}
+
+	/**
+	 * Acknowledge everything received from the client so far, with the current window. Also used
+	 * when a delayed ACK's timer expires.
+	 */
+	public void sendAck(Connection connection) {
+		IP4Header ipHeader = connection.getLastIpHeader();
+		TCPHeader tcpHeader = connection.getLastTcpHeader();
+		if (ipHeader == null || tcpHeader == null) {
+			return;
+		}
+
+		IoStats.pureAck(connection.ackSent());
+		SegmentBuffer data = TCPPacketFactory.createResponseAckData(bufferPool, ipHeader, tcpHeader,
+				connection.getRecSequence(), connection.receiveWindow(), connection.getTcpOptions(),
+				PacketUtil.INSTANCE.getTimestampMillis(), connection.getTimestampReplyTo());
+		writer.write(data, ClientPacketWriter.Lane.CONTROL);
+	}
+
 	private void writePendingData(Connection connection) throws IOException {
 		if (!connection.hasDataToSend()) return;
 		AbstractSelectableChannel channel = connection.getChannel();
 
-		byte[] data = connection.getSendingData();
-		ByteBuffer buffer = ByteBuffer.allocate(data.length);
-		buffer.put(data);
-		buffer.flip();
-
-		while (buffer.hasRemaining()) {
-			int bytesWritten = channel instanceof SocketChannel
-				? ((SocketChannel) channel).write(buffer)
-				: ((DatagramChannel) channel).write(buffer);
-
+		// Gathering writes straight from the connection's buffer chunks, the unwritten rest stays queued
+		while (connection.hasDataToSend()) {
+			long bytesWritten = connection.writeSendingData((GatheringByteChannel) channel);
 			if (bytesWritten == 0) {
 				break;
 			}
+			IoStats.forwarded((int) bytesWritten);
+			IoStats.syscall(bufferPool.getDirect(), (int) bytesWritten);
 		}
 
-		if (buffer.hasRemaining()) {
+		if (connection.hasDataToSend()) {
 			// The channel's own buffer is full, so we have to save this for later.
-			Log.i(TAG, buffer.remaining() + " bytes unwritten for " + channel);
-
-			// Put the remaining data from the buffer back into the session
-			connection.setSendingData(buffer.compact());
+			Log.i(TAG, connection.sendingDataSize() + " bytes unwritten for " + channel);
 
 			// Subscribe to WRITE events, so we know when this is ready to resume.
 			connection.subscribeKey(SelectionKey.OP_WRITE);
@@ -141,7 +168,7 @@ public class SocketChannelWriter {
 			connection.setDataForSendingReady(false);
 
 			// We don't need to know about WRITE events any more, we've written all our data.
-			// This is safe from races with new data, due to the session lock in NIO.
+			// This is safe from races with new data, which is also handled on the NIO thread.
 			connection.unsubscribeKey(SelectionKey.OP_WRITE);
 		}
 	}
@@ -4,9 +4,15 @@ import android.util.Log;
 
 
 import com.network.proxy.vpn.Connection;
+import com.network.proxy.vpn.Protocol;
 import com.network.proxy.vpn.TagKt;
+import com.network.proxy.vpn.transport.protocol.IP4Header;
+import com.network.proxy.vpn.transport.protocol.TCPHeader;
+import com.network.proxy.vpn.transport.protocol.TCPPacketFactory;
+import com.network.proxy.vpn.util.PacketUtil;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectableChannel;
@@ -14,9 +20,11 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.AbstractSelectableChannel;
+import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 
 
 /**
@@ -25,23 +33,145 @@ import java.util.concurrent.locks.ReentrantLock;
  * <p>
  * It uses a Selector that fires on outgoing socket events (connected, readable, writable),
  * handles the resulting operations, and keeps those subscriptions up to date.
+ * <p>
+ * The NIO thread is the only owner of connection state: packets read from the TUN are handed over
+ * through a lock-free queue and processed here, between selects, together with socket events and
+ * timers. Connections, the connection table and the timing wheel are therefore never locked.
+ * <p>
+ * Each instance is one event loop of an {@code EventLoopGroup}. Flows are assigned to a loop by
+ * their 5-tuple and never move. Per loop: the selector, the inbound packet queue, the socket and
+ * control packet buffer pool, the timing wheel, the packet handler and the connection manager with
+ * its table. Shared by the whole group: the TUN packet pool, the download {@code FlowCredits}, the
+ * upload {@code UploadCredits}, the connection cap and the TUN writer.
  */
 public class SocketNIODataService implements Runnable {
 
 	private final String TAG = TagKt.getTAG(this);
-	private final ReentrantLock nioSelectionLock = new ReentrantLock();
-	private final ReentrantLock nioHandlingLock = new ReentrantLock();
 	private final Selector selector = Selector.open();
 
+	// Packets read from the TUN by the VPN thread, waiting for the NIO thread
+	private static final int INBOUND_QUEUE_CAPACITY = 2048;
+	// Packets processed per loop pass, so socket events and timers are not starved by a burst
+	private static final int INBOUND_BATCH = 256;
+	private static final long SUBMIT_BACKOFF_NANOS = 50_000L;
+
+	private final PacketRing inbound = new PacketRing(INBOUND_QUEUE_CAPACITY);
+	private volatile PacketHandler packetHandler;
+
+	// Set while the NIO thread may block in select(), so submitters only wake it when needed
+	private final AtomicBoolean selecting = new AtomicBoolean();
+
+	// Read and write buffers are borrowed from this pool, instead of allocated per event
+	private final BufferPool bufferPool;
+
+	// Shared by every loop: the VPN thread reads TUN packets straight into its buffers, before it
+	// knows which loop the packet belongs to
+	private final BufferPool packetPool;
+
+	// Bounds the bytes queued for the TUN, per connection and across every loop
+	private final FlowCredits flowCredits;
+
+	// Connections whose reads are paused for lack of credits, only touched by the NIO thread
+	private final List<Connection> pausedReads = new ArrayList<>();
+	private final AtomicBoolean resumeRequested = new AtomicBoolean();
+
+	// Every connection timer (RTO, delayed ACK, upload flush, connect and idle), advanced by the NIO thread
+	private final TimingWheel timingWheel = new TimingWheel(TimingWheel.DEFAULT_TICK_MILLIS);
+
+	private final ClientPacketWriter clientPacketWriter;
 	private final SocketChannelReader reader;
 	private final SocketChannelWriter writer;
 
 	private volatile boolean shutdown = false;
 
 	
-	public SocketNIODataService(ClientPacketWriter clientPacketWriter) throws IOException {
-		reader = new SocketChannelReader(clientPacketWriter);
-		writer = new SocketChannelWriter(clientPacketWriter);
+	/**
+	 * @param directIo use direct buffers, so socket reads and writes don't copy through a temporary native buffer
+	 * @param flowCredits the downstream credits, shared by every loop
+	 * @param packetPool the pool submitted packets are borrowed from, they are released to it once handled
+	 */
+	public SocketNIODataService(ClientPacketWriter clientPacketWriter, boolean directIo, FlowCredits flowCredits,
+								BufferPool packetPool) throws IOException {
+		this.clientPacketWriter = clientPacketWriter;
+		this.flowCredits = flowCredits;
+		this.packetPool = packetPool;
+		bufferPool = new BufferPool(directIo);
+		flowCredits.addResumeListener(() -> {
+			resumeRequested.set(true);
+			selector.wakeup();
+		});
+		reader = new SocketChannelReader(clientPacketWriter, bufferPool, flowCredits);
+		writer = new SocketChannelWriter(clientPacketWriter, bufferPool);
+	}
+
+	public BufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	public FlowCredits getFlowCredits() {
+		return flowCredits;
+	}
+
+	/**
+	 * Handles the packets submitted from the TUN, on the NIO thread
+	 */
+	public void setPacketHandler(PacketHandler packetHandler) {
+		this.packetHandler = packetHandler;
+	}
+
+	/**
+	 * Hand a packet read from the TUN to the NIO thread, which releases it to the packet pool once
+	 * handled. Called by the VPN thread; waits briefly while the queue is full, so a slow NIO thread
+	 * pushes back on the TUN instead of dropping packets.
+	 */
+	public void submit(ByteBuffer packet) {
+		while (!inbound.offer(packet)) {
+			if (shutdown) {
+				packetPool.release(packet);
+				return;
+			}
+			wakeupSelector();
+			LockSupport.parkNanos(SUBMIT_BACKOFF_NANOS);
+		}
+		wakeupSelector();
+	}
+
+	private void wakeupSelector() {
+		if (selecting.compareAndSet(true, false)) {
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Send buffered upstream data that now fits in the client's window, when an ACK opens the window
+	 */
+	public void pushDataToClient(Connection connection) {
+		reader.pushData(connection);
+	}
+
+	/**
+	 * Resend a lost segment right away, from the third duplicate ACK on: the next SACK hole not
+	 * yet resent in this recovery, or the oldest segment without SACK.
+	 */
+	public void fastRetransmit(Connection connection) {
+		reader.retransmitHoles(connection);
+	}
+
+	/**
+	 * Create the connection's timers on the wheel and start its idle timer. Idempotent, called
+	 * before the connection is registered.
+	 */
+	public void track(Connection connection) {
+		if (connection.getIdleTimer() != null) {
+			return;
+		}
+		connection.setRetransmitTimer(timingWheel.newTimer(() -> onRetransmitTimeout(connection)));
+		connection.setAckTimer(timingWheel.newTimer(() -> onDelayedAck(connection)));
+		connection.setFlushTimer(timingWheel.newTimer(() -> onFlush(connection)));
+		connection.setConnectTimer(timingWheel.newTimer(() -> onConnectTimeout(connection)));
+		TimingWheel.Timer idleTimer = timingWheel.newTimer(() -> onIdle(connection));
+		connection.setIdleTimer(idleTimer);
+		idleTimer.schedule(idleTimeout(connection));
 	}
 
 	@Override
@@ -57,50 +187,22 @@ public class SocketNIODataService implements Runnable {
 				? ((DatagramChannel) channel).isConnected()
 				: ((SocketChannel) channel).isConnected();
 
-//		Log.i(TAG, "Registering new session: " + session);
-
-		Lock selectorLock = lockSelector(selector);
-		try {
-			SelectionKey selectionKey = channel.register(selector,
-					isConnected
-							? SelectionKey.OP_READ
-							: SelectionKey.OP_CONNECT
-			);
-			connection.setSelectionKey(selectionKey);
-			selectionKey.attach(connection);
-//			Log.d(TAG, "Registered selector successfully");
-		} finally {
-			selectorLock.unlock();
+		track(connection);
+		if (!isConnected) {
+			connection.getConnectTimer().schedule(Constant.CONNECT_TIMEOUT_MILLIS);
 		}
-	}
-
-	private Lock lockSelector(Selector selector) {
-		boolean gotSelectionLock = nioSelectionLock.tryLock();
-		if (gotSelectionLock) return nioSelectionLock;
 
-		nioHandlingLock.lock(); // Ensure the NIO thread can't do anything on wakeup
-		selector.wakeup();
-
-		nioSelectionLock.lock(); // Actually get the lock we want
-		nioHandlingLock.unlock(); // Release the handling lock, which we no longer care about
+//		Log.i(TAG, "Registering new session: " + session);
 
-		return nioSelectionLock;
-	}
-
-	/**
-	 * If the selector is currently select()ing, wake it up (e.g. to register changes to
-	 * interestOps). If it's not (and so it probably will select() very soon anyway) do nothing.
-	 * This is designed to be run after changing readyOps, to ensure the new ops get monitored
-	 * immediately (and fire immediately, if already ready). Without this, that blocks.
-	 */
-	public void refreshSelect(Connection connection) {
-		boolean gotLock = nioSelectionLock.tryLock();
-
-		if (!gotLock) {
-			connection.getSelectionKey().selector().wakeup();
-		} else {
-			nioSelectionLock.unlock();
-		}
+		// Registered from the NIO thread itself, between selects, so this never blocks
+		SelectionKey selectionKey = channel.register(selector,
+				isConnected
+						? SelectionKey.OP_READ
+						: SelectionKey.OP_CONNECT
+		);
+		connection.setSelectionKey(selectionKey);
+		selectionKey.attach(connection);
+//		Log.d(TAG, "Registered selector successfully");
 	}
 
 	/**
@@ -116,8 +218,13 @@ public class SocketNIODataService implements Runnable {
 		
 		while(!shutdown){
 			try {
-				nioSelectionLock.lockInterruptibly();
-				selector.select();
+				selecting.set(true);
+				// Packets submitted after this check find selecting set and wake the selector
+				if (inbound.isEmpty()) {
+					selector.select(timingWheel.prepareSleep(PacketUtil.INSTANCE.getElapsedMillis()));
+				} else {
+					selector.selectNow();
+				}
 			} catch (IOException e) {
 				Log.e(TAG,"Error in Selector.select(): " + e.getMessage());
 				try {
@@ -126,46 +233,184 @@ public class SocketNIODataService implements Runnable {
 					Log.e(TAG, e.toString());
 				}
 				continue;
-			} catch (InterruptedException ex) {
-				Log.i(TAG, "Select() interrupted");
 			} finally {
-				if (nioSelectionLock.isHeldByCurrentThread()) {
-					nioSelectionLock.unlock();
-				}
+				selecting.set(false);
 			}
 
 			if (shutdown) {
 				break;
 			}
 
-			// A lock here makes it possible to reliably grab the selection lock above
-			nioHandlingLock.lock();
+			processInboundPackets();
+
+			if (resumeRequested.getAndSet(false)) {
+				resumePausedReads();
+			}
+
+			timingWheel.advance(PacketUtil.INSTANCE.getElapsedMillis());
+
+			Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+			while (iterator.hasNext()) {
+				SelectionKey key = iterator.next();
+				try {
+					processSelectionKey(key);
+				} catch (IOException e) {
+					key.cancel();
+				}
+
+				iterator.remove();
+				if (shutdown) {
+					break;
+				}
+			}
+		}
+		releaseInboundPackets();
+		reader.releaseReadBuffers();
+		Log.i(TAG, "NIO selector shutdown, buffer pool " + bufferPool.stats() + ", " + IoStats.INSTANCE
+				+ ", flow credits " + flowCredits.stats() + ", timers " + timingWheel.getSize());
+	}
+
+	/**
+	 * Handle the packets the VPN thread has queued, each returned to the packet pool afterwards
+	 */
+	private void processInboundPackets() {
+		PacketHandler handler = packetHandler;
+		for (int i = 0; i < INBOUND_BATCH; i++) {
+			ByteBuffer packet = (ByteBuffer) inbound.poll();
+			if (packet == null) {
+				return;
+			}
 			try {
-				Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
-
-				while (iterator.hasNext()) {
-					SelectionKey key = iterator.next();
-					Connection connection = ((Connection) key.attachment());
-					synchronized (connection) { // Sessions are locked during processing (no VPN data races)
-						try {
-							processSelectionKey(key);
-						} catch (IOException e) {
-							synchronized (key) {
-								key.cancel();
-							}
-						}
-					}
-
-					iterator.remove();
-					if (shutdown) {
-						break;
-					}
+				if (handler != null) {
+					handler.handlePacket(packet);
 				}
+			} catch (Exception e) {
+				Log.e(TAG, "Error handling packet: " + e.getMessage(), e);
 			} finally {
-				nioHandlingLock.unlock();
+				packetPool.release(packet);
 			}
 		}
-		Log.i(TAG, "NIO selector shutdown");
+	}
+
+	private void releaseInboundPackets() {
+		Object packet;
+		while ((packet = inbound.poll()) != null) {
+			packetPool.release((ByteBuffer) packet);
+		}
+	}
+
+	/**
+	 * The retransmission timer expired, RFC 6298 5.4. Without unacknowledged data it serves as the
+	 * persist timer, probing a zero window.
+	 */
+	private void onRetransmitTimeout(Connection connection) {
+		if (connection.isAbortingConnection() || !connection.getChannel().isOpen()) {
+			return;
+		}
+		if (connection.getRetransmissionQueue().isEmpty()) {
+			reader.persistTimeout(connection);
+			return;
+		}
+		reader.retransmitTimeout(connection);
+	}
+
+	/**
+	 * Send the delayed ACK, unless data or another ACK has carried it already
+	 */
+	private void onDelayedAck(Connection connection) {
+		if (connection.getPendingAckSegments() > 0 && !connection.isAbortingConnection()
+				&& connection.getChannel().isOpen()) {
+			writer.sendAck(connection);
+		}
+	}
+
+	/**
+	 * Write out an upload held back for coalescing
+	 */
+	private void onFlush(Connection connection) {
+		if (connection.isAbortingConnection() || !connection.getChannel().isOpen()
+				|| !connection.hasDataToSend()) {
+			return;
+		}
+		connection.setDataForSendingReady(true);
+		if (isConnected(connection.getChannel())) {
+			writer.write(connection); // This will resubscribe to OP_WRITE if it can't complete
+		} else {
+			connection.subscribeKey(SelectionKey.OP_WRITE);
+		}
+	}
+
+	private void onConnectTimeout(Connection connection) {
+		if (connection.isConnected() || connection.isAbortingConnection() || !connection.getChannel().isOpen()) {
+			return;
+		}
+		Log.w(TAG, "connect timed out " + connection);
+		IoStats.connectTimedOut();
+		abort(connection);
+	}
+
+	/**
+	 * The idle timer is not pushed back on every packet, only the last activity is recorded. When it
+	 * fires early, it is rescheduled for the remainder.
+	 */
+	private void onIdle(Connection connection) {
+		if (connection.isAbortingConnection() || !connection.getChannel().isOpen()) {
+			return;
+		}
+		long timeout = idleTimeout(connection);
+		long idle = PacketUtil.INSTANCE.getElapsedMillis() - connection.getLastActive();
+		if (idle < timeout) {
+			connection.getIdleTimer().schedule(timeout - idle);
+			return;
+		}
+		Log.d(TAG, "idle timeout " + connection);
+		IoStats.idleReaped(connection.getProtocol(), isDns(connection));
+		abort(connection);
+	}
+
+	/**
+	 * Idle timeouts after RFC 5382 and RFC 4787: established TCP connections are kept for 2 hours
+	 * 4 minutes, connections being set up or closed for 4 minutes, UDP flows for 2 minutes and DNS
+	 * lookups for a few seconds. The established timeout outlasts the default 2 hour keepalive
+	 * interval, so a client's keepalive probe refreshes the connection before it is reaped.
+	 */
+	private long idleTimeout(Connection connection) {
+		if (connection.getProtocol() == Protocol.UDP) {
+			return isDns(connection) ? Constant.DNS_IDLE_TIMEOUT_MILLIS : Constant.UDP_IDLE_TIMEOUT_MILLIS;
+		}
+		if (!connection.isConnected() || connection.isFinPending() || connection.isClosingConnection()
+				|| connection.isAckedToFin()) {
+			return Constant.TCP_TRANSITORY_TIMEOUT_MILLIS;
+		}
+		return Constant.TCP_IDLE_TIMEOUT_MILLIS;
+	}
+
+	private static boolean isDns(Connection connection) {
+		return connection.getProtocol() == Protocol.UDP && connection.getDestinationPort() == Constant.DNS_PORT;
+	}
+
+	/**
+	 * Close the least recently active connection to make room in a full connection table
+	 */
+	public void evict(Connection connection) {
+		if (!connection.isAbortingConnection() && connection.getChannel() != null
+				&& connection.getChannel().isOpen()) {
+			abort(connection);
+		}
+	}
+
+	/**
+	 * Reset the client side of a TCP connection and close the upstream
+	 */
+	private void abort(Connection connection) {
+		IP4Header ipHeader = connection.getLastIpHeader();
+		TCPHeader tcpHeader = connection.getLastTcpHeader();
+		if (connection.getProtocol() == Protocol.TCP && ipHeader != null && tcpHeader != null) {
+			clientPacketWriter.write(TCPPacketFactory.INSTANCE.createRstData(bufferPool, ipHeader, tcpHeader, 0),
+					ClientPacketWriter.Lane.CONTROL);
+		}
+		connection.setAbortingConnection(true);
+		reader.closeAborted(connection);
 	}
 
 	private void processSelectionKey(SelectionKey key) throws IOException {
@@ -188,6 +433,9 @@ public class SocketNIODataService implements Runnable {
 			if (socketChannel.isConnectionPending()) {
 				boolean connected = socketChannel.finishConnect();
 				connection.setConnected(connected);
+				if (connected) {
+					connection.getConnectTimer().cancel();
+				}
 			} else {
 				throw new IllegalStateException("TCP channels must either be connected or pending connection");
 			}
@@ -209,21 +457,63 @@ public class SocketNIODataService implements Runnable {
 	}
 
 	private void processConnectedSelection(SelectionKey key, Connection connection) {
-		// Whilst connected, we always want READ and not CONNECT events
+		// Whilst connected, we always want READ and not CONNECT events, unless reads are paused
 		connection.unsubscribeKey(SelectionKey.OP_CONNECT);
-		connection.subscribeKey(SelectionKey.OP_READ);
+		if (connection.wantsRead()) {
+			connection.subscribeKey(SelectionKey.OP_READ);
+		}
 		processSelectorRead(key, connection);
 		processPendingWrite(key, connection);
 	}
 
 	private void processSelectorRead(SelectionKey selectionKey, Connection connection) {
-		boolean canRead;
-		synchronized (selectionKey) {
-			// There's a race here that requires a lock, as isReadable requires isValid
-			canRead = selectionKey.isValid() && selectionKey.isReadable();
+		boolean canRead = selectionKey.isValid() && selectionKey.isReadable();
+
+		if (!canRead) return;
+
+		if (!flowCredits.canRead(connection)) {
+			pauseRead(connection);
+			return;
+		}
+		reader.read(connection);
+	}
+
+	/**
+	 * Stop reading from the upstream socket until the client has acknowledged enough of this
+	 * connection's buffered data, so a fast server can't fill the heap faster than the TUN consumes it.
+	 */
+	private void pauseRead(Connection connection) {
+		connection.setReadPaused(true);
+		connection.unsubscribeKey(SelectionKey.OP_READ);
+		flowCredits.paused();
+		pausedReads.add(connection);
+
+		// Credits may have dropped below the low water mark before the releasing thread could see the pause
+		if (flowCredits.canResume(connection)) {
+			resumeRequested.set(true);
+			selector.wakeup();
 		}
+	}
 
-		if (canRead) reader.read(connection);
+	/**
+	 * Re-arm reads for paused connections that are back under the low water mark
+	 */
+	private void resumePausedReads() {
+		Iterator<Connection> iterator = pausedReads.iterator();
+		while (iterator.hasNext()) {
+			Connection connection = iterator.next();
+			boolean closed = connection.isAbortingConnection() || !connection.getChannel().isOpen();
+			if (!closed && !flowCredits.canResume(connection)) {
+				continue;
+			}
+
+			iterator.remove();
+			connection.setReadPaused(false);
+			flowCredits.resumed();
+			if (!closed && connection.wantsRead()) {
+				connection.subscribeKey(SelectionKey.OP_READ);
+			}
+		}
 	}
 
 	private void processPendingWrite(SelectionKey selectionKey, Connection connection) {
@@ -233,11 +523,7 @@ public class SocketNIODataService implements Runnable {
 			return;
 		}
 
-		boolean canWrite;
-		synchronized (selectionKey) {
-			// There's a race here that requires a lock, as isReadable requires isValid
-			canWrite = selectionKey.isValid() && selectionKey.isWritable();
-		}
+		boolean canWrite = selectionKey.isValid() && selectionKey.isWritable();
 
 		if (canWrite) {
 			connection.unsubscribeKey(SelectionKey.OP_WRITE);
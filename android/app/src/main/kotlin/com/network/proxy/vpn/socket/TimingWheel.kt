@@ -0,0 +1,232 @@
+package com.network.proxy.vpn.socket
+
+/**
+ * 分层哈希时间轮，由NIO线程驱动，所有连接的定时器（重传、延迟ACK、上行攒批、空闲、连接超时）共用。
+ *
+ * 三层各[WHEEL_SIZE]个槽，每层的一个槽等于下一层转一圈：第0层精度为tickMillis，
+ * 默认5ms时三层分别覆盖约1.3秒、5.5分钟和23小时，更远的定时器放在最外层的最后一个槽，到时再重新计算。
+ * 槽内是双向链表，调度和取消都是O(1)；每个定时器节点由连接复用，不会为每次调度分配对象。
+ *
+ * 调度、取消和[advance]都只在NIO线程进行，不加锁；到期的任务在推进完成之后执行，任务内部可以重新调度，
+ * 也可以取消同一批到期但尚未执行的定时器。
+ *
+ * @param tickMillis 第0层每个槽的时长
+ */
+class TimingWheel(private val tickMillis: Long = DEFAULT_TICK_MILLIS) {
+    companion object {
+        const val DEFAULT_TICK_MILLIS = 5L
+
+        private const val WHEEL_BITS = 8
+        private const val WHEEL_SIZE = 1 shl WHEEL_BITS
+        private const val WHEEL_MASK = WHEEL_SIZE - 1L
+        private const val LEVELS = 3
+    }
+
+    /**
+     * 可复用的定时器节点
+     */
+    inner class Timer internal constructor(internal val task: Runnable) {
+        internal var expiryTick = 0L
+        internal var prev: Timer? = null
+        internal var next: Timer? = null
+        internal var level = -1
+        internal var slot = 0
+
+        var isScheduled = false
+            internal set
+
+        //已到期、等待本次推进执行；在此之前取消或重新调度会清除
+        internal var isExpired = false
+
+        /**
+         * 在delayMillis后执行，已调度时重新计算到期时间
+         */
+        fun schedule(delayMillis: Long) {
+            this@TimingWheel.schedule(this, delayMillis)
+        }
+
+        fun cancel() {
+            this@TimingWheel.cancel(this)
+        }
+    }
+
+    //每层每个槽的链表头
+    private val slots = Array(LEVELS) { arrayOfNulls<Timer>(WHEEL_SIZE) }
+    private val levelCounts = IntArray(LEVELS)
+
+    private var currentTick = tick(System.nanoTime() / 1_000_000)
+
+    private val expired = ArrayList<Timer>()
+
+    var size = 0
+        private set
+
+    fun newTimer(task: Runnable): Timer = Timer(task)
+
+    private fun tick(millis: Long): Long = millis / tickMillis
+
+    private fun schedule(timer: Timer, delayMillis: Long) {
+        if (timer.isScheduled) {
+            unlink(timer)
+        }
+        timer.isExpired = false
+        //向上取整，定时器不会早于请求的时间到期
+        val delayTicks = maxOf((delayMillis + tickMillis - 1) / tickMillis, 1)
+        val nowTick = tick(System.nanoTime() / 1_000_000)
+        if (size == 0) {
+            //时间轮为空时NIO线程不推进时间，先对齐到当前时间
+            currentTick = maxOf(currentTick, nowTick - 1)
+        }
+        timer.expiryTick = nowTick + delayTicks
+        link(timer)
+    }
+
+    private fun cancel(timer: Timer) {
+        if (timer.isScheduled) {
+            unlink(timer)
+        }
+        timer.isExpired = false
+    }
+
+    private fun link(timer: Timer) {
+        val delta = timer.expiryTick - currentTick
+        var level = 0
+        while (level < LEVELS - 1 && delta >= 1L shl (WHEEL_BITS * (level + 1))) {
+            level++
+        }
+        val slot = if (delta >= 1L shl (WHEEL_BITS * LEVELS)) {
+            //超出时间轮范围，放在最外层当前槽的前一个槽，转一圈后重新计算
+            ((currentTick shr (WHEEL_BITS * level)) - 1) and WHEEL_MASK
+        } else {
+            (maxOf(timer.expiryTick, currentTick + 1) shr (WHEEL_BITS * level)) and WHEEL_MASK
+        }
+
+        val head = slots[level][slot.toInt()]
+        timer.prev = null
+        timer.next = head
+        head?.prev = timer
+        slots[level][slot.toInt()] = timer
+        timer.level = level
+        timer.slot = slot.toInt()
+        timer.isScheduled = true
+        levelCounts[level]++
+        size++
+    }
+
+    private fun unlink(timer: Timer) {
+        val prev = timer.prev
+        val next = timer.next
+        if (prev == null) {
+            slots[timer.level][timer.slot] = next
+        } else {
+            prev.next = next
+        }
+        next?.prev = prev
+        timer.prev = null
+        timer.next = null
+        timer.isScheduled = false
+        levelCounts[timer.level]--
+        size--
+    }
+
+    /**
+     * NIO线程select()之前调用，返回最多可以等待的毫秒数，0表示没有定时器、可以一直等待
+     */
+    fun prepareSleep(nowMillis: Long): Long {
+        if (size == 0) {
+            return 0
+        }
+        val ticks = ticksUntilNextWork()
+        return maxOf((currentTick + ticks) * tickMillis - nowMillis, 1)
+    }
+
+    /**
+     * 到下一个非空的第0层槽，或下一次需要从上层降级的tick数
+     */
+    private fun ticksUntilNextWork(): Long {
+        val toNextRotation = WHEEL_SIZE - (currentTick and WHEEL_MASK)
+        if (levelCounts[0] > 0) {
+            for (i in 1..WHEEL_SIZE) {
+                if (slots[0][((currentTick + i) and WHEEL_MASK).toInt()] != null) {
+                    return minOf(i.toLong(), toNextRotation)
+                }
+            }
+        }
+        return toNextRotation
+    }
+
+    /**
+     * 推进到当前时间，执行所有到期的定时器。只在NIO线程调用
+     */
+    fun advance(nowMillis: Long) {
+        val nowTick = tick(nowMillis)
+        while (currentTick < nowTick) {
+            if (size == 0) {
+                currentTick = nowTick
+                break
+            }
+            if (levelCounts[0] == 0) {
+                //第0层为空时直接跳到下一次降级，不逐个tick推进
+                val next = (currentTick or WHEEL_MASK) + 1
+                if (next > nowTick) {
+                    currentTick = nowTick
+                    break
+                }
+                currentTick = next - 1
+            }
+            currentTick++
+            if ((currentTick and WHEEL_MASK) == 0L) {
+                cascade(1)
+            }
+            expireSlot((currentTick and WHEEL_MASK).toInt())
+        }
+
+        for (i in expired.indices) {
+            val timer = expired[i]
+            //前面到期的任务可能已将其取消或重新调度
+            if (timer.isExpired) {
+                timer.isExpired = false
+                timer.task.run()
+            }
+        }
+        expired.clear()
+    }
+
+    /**
+     * 上层转到新槽时，将该槽中的定时器重新放入更低的层
+     */
+    private fun cascade(level: Int) {
+        val shift = WHEEL_BITS * level
+        if (level < LEVELS - 1 && ((currentTick shr shift) and WHEEL_MASK) == 0L) {
+            cascade(level + 1)
+        }
+        val slot = ((currentTick shr shift) and WHEEL_MASK).toInt()
+        var timer = slots[level][slot]
+        while (timer != null) {
+            val next = timer.next
+            unlink(timer)
+            if (timer.expiryTick <= currentTick) {
+                timer.isExpired = true
+                expired.add(timer)
+            } else {
+                link(timer)
+            }
+            timer = next
+        }
+    }
+
+    private fun expireSlot(slot: Int) {
+        var timer = slots[0][slot]
+        while (timer != null) {
+            val next = timer.next
+            unlink(timer)
+            if (timer.expiryTick <= currentTick) {
+                timer.isExpired = true
+                expired.add(timer)
+            } else {
+                link(timer)
+            }
+            timer = next
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.network.proxy.vpn.socket
+
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * 上行方向的缓冲额度。客户端发来、尚未写到上游的字节数全局有上限，
+ * 额度用尽时各连接通告的接收窗口收缩到保底值，客户端随之放慢发送，数据写到上游后归还额度。
+ * 所有事件循环共享同一个实例。
+ *
+ * @param globalLimit 所有连接合计最多缓冲的字节数
+ */
+class UploadCredits(private val globalLimit: Long = DEFAULT_GLOBAL_LIMIT) {
+    companion object {
+        const val DEFAULT_GLOBAL_LIMIT = 8L * 1024 * 1024
+
+        //额度用尽时每个连接仍可缓冲的字节数，连接不必等待其他连接归还额度就能推进
+        const val CONNECTION_RESERVE = 16 * 1024
+    }
+
+    private val bufferedBytes = AtomicLong()
+
+    /**
+     * 已缓冲size字节的连接还能接收的字节数
+     */
+    fun available(size: Int): Int {
+        val remaining = (globalLimit - bufferedBytes.get()).coerceIn(0, Int.MAX_VALUE.toLong()).toInt()
+        return maxOf(remaining, CONNECTION_RESERVE - size, 0)
+    }
+
+    fun acquire(length: Int) {
+        bufferedBytes.addAndGet(length.toLong())
+    }
+
+    fun release(length: Int) {
+        bufferedBytes.addAndGet(-length.toLong())
+    }
+
+    fun bufferedBytes(): Long {
+        return bufferedBytes.get()
+    }
+}
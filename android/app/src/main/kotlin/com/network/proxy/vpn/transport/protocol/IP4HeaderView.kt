@@ -0,0 +1,83 @@
+package com.network.proxy.vpn.transport.protocol
+
+import java.nio.ByteBuffer
+
+/**
+ * IPv4报头的只读视图（flyweight），直接按偏移读取底层ByteBuffer，不产生对象分配。
+ * 同一个实例通过[wrap]在每个数据包上重复使用，只有连接需要保存状态时才调用[toHeader]生成[IP4Header]。
+ */
+class IP4HeaderView {
+    companion object {
+        const val IP4_HEADER_SIZE = 20
+        private const val IP4_VERSION = 0x04
+    }
+
+    private var buffer: ByteBuffer = ByteBuffer.allocate(0)
+
+    //IP报头在buffer中的起始位置
+    var offset = 0
+        private set
+
+    /**
+     * 绑定到buffer的指定偏移，报文不是合法的IPv4报头时返回false
+     */
+    fun wrap(buffer: ByteBuffer, offset: Int): Boolean {
+        if (buffer.limit() - offset < IP4_HEADER_SIZE) {
+            return false
+        }
+        this.buffer = buffer
+        this.offset = offset
+        val headerLength = getIPHeaderLength()
+        return version == IP4_VERSION && headerLength >= IP4_HEADER_SIZE && buffer.limit() - offset >= headerLength
+    }
+
+    val version: Int
+        get() = (buffer.get(offset).toInt() shr 4) and 0x0F
+
+    fun getIPHeaderLength(): Int {
+        return (buffer.get(offset).toInt() and 0x0F) * 4
+    }
+
+    val totalLength: Int
+        get() = buffer.getShort(offset + 2).toInt() and 0xFFFF
+
+    val identification: Int
+        get() = buffer.getShort(offset + 4).toInt()
+
+    val protocol: Byte
+        get() = buffer.get(offset + 9)
+
+    val sourceIP: Int
+        get() = buffer.getInt(offset + 12)
+
+    val destinationIP: Int
+        get() = buffer.getInt(offset + 16)
+
+    //传输层报头的起始位置
+    val payloadOffset: Int
+        get() = offset + getIPHeaderLength()
+
+    /**
+     * 生成IP4Header对象，仅在连接需要保存报头状态时调用
+     */
+    fun toHeader(): IP4Header {
+        val typeOfService = buffer.get(offset + 1).toInt()
+        val flagsAndFragmentOffset = buffer.getShort(offset + 6).toInt()
+        return IP4Header(
+            version.toByte(),
+            (buffer.get(offset).toInt() and 0x0F).toByte(),
+            (typeOfService shr 2).toByte(),
+            (typeOfService and 0x03).toByte(),
+            totalLength,
+            identification,
+            flagsAndFragmentOffset and 0x4000 != 0,
+            flagsAndFragmentOffset and 0x2000 != 0,
+            (flagsAndFragmentOffset and 0x1FFF).toShort(),
+            buffer.get(offset + 8),
+            protocol,
+            buffer.getShort(offset + 10).toInt(),
+            sourceIP,
+            destinationIP
+        )
+    }
+}
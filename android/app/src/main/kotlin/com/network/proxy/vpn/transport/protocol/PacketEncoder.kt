@@ -0,0 +1,150 @@
+package com.network.proxy.vpn.transport.protocol
+
+import com.network.proxy.vpn.util.Checksum
+import com.network.proxy.vpn.util.PacketUtil
+import java.nio.ByteBuffer
+
+/**
+ * 响应数据包编码器，将翻转后的IP和TCP/UDP报头直接写入调用方提供的buffer。
+ * 负载数据须事先放在报头之后的位置，编码过程不产生任何对象分配，也不拷贝负载。
+ */
+object PacketEncoder {
+    const val IP4_HEADER_SIZE = 20
+    const val TCP_HEADER_SIZE = 20
+    const val UDP_HEADER_SIZE = 8
+
+    //无选项时负载数据相对于数据包起始位置的偏移，携带选项时使用[tcpPayloadOffset]
+    const val TCP_PAYLOAD_OFFSET = IP4_HEADER_SIZE + TCP_HEADER_SIZE
+    const val UDP_PAYLOAD_OFFSET = IP4_HEADER_SIZE + UDP_HEADER_SIZE
+
+    const val FLAG_FIN = 0x01
+    const val FLAG_SYN = 0x02
+    const val FLAG_RST = 0x04
+    const val FLAG_PSH = 0x08
+    const val FLAG_ACK = 0x10
+
+    private const val DEFAULT_TTL = 64
+    private const val DONT_FRAGMENT = 0x4000
+
+    /**
+     * 携带[options]时负载数据相对于数据包起始位置的偏移
+     */
+    @JvmStatic
+    fun tcpPayloadOffset(flags: Int, options: TcpOptions): Int {
+        return TCP_PAYLOAD_OFFSET + options.length(flags and FLAG_SYN != 0)
+    }
+
+    /**
+     * 写入发往客户端的TCP数据包报头，ip和tcp为客户端发来的报头，地址和端口会被翻转。
+     * 负载数据须已位于 offset + [tcpPayloadOffset] 处。
+     *
+     * @param options 协商的选项，SYN报文写入全部选项，其余报文只写入时间戳
+     * @return 数据包总长度
+     */
+    fun encodeTcp(
+        buffer: ByteBuffer, offset: Int, ip: IP4Header, tcp: TCPHeader,
+        flags: Int, seqNumber: Long, ackNumber: Long, window: Int, payloadLength: Int,
+        options: TcpOptions = TcpOptions.NONE, tsValue: Int = 0, tsEchoReply: Int = 0
+    ): Int {
+        val syn = flags and FLAG_SYN != 0
+        val tcpHeaderLength = TCP_HEADER_SIZE + options.length(syn)
+        val totalLength = IP4_HEADER_SIZE + tcpHeaderLength + payloadLength
+        val sourceIp = ip.destinationIP
+        val destinationIp = ip.sourceIP
+        writeIp4Header(buffer, offset, totalLength, DONT_FRAGMENT, 6, sourceIp, destinationIp)
+
+        val tcpStart = offset + IP4_HEADER_SIZE
+        buffer.putShort(tcpStart, tcp.getDestinationPort().toShort())
+        buffer.putShort(tcpStart + 2, tcp.getSourcePort().toShort())
+        buffer.putInt(tcpStart + 4, seqNumber.toInt())
+        buffer.putInt(tcpStart + 8, ackNumber.toInt())
+        buffer.put(tcpStart + 12, ((tcpHeaderLength / 4) shl 4).toByte())
+        buffer.put(tcpStart + 13, flags.toByte())
+        buffer.putShort(tcpStart + 14, window.toShort())
+        buffer.putShort(tcpStart + 16, 0)
+        buffer.putShort(tcpStart + 18, 0)
+        options.write(buffer, tcpStart + TCP_HEADER_SIZE, syn, tsValue, tsEchoReply)
+
+        val tcpLength = tcpHeaderLength + payloadLength
+        val checksum = Checksum.checksum(
+            buffer, tcpStart, tcpLength,
+            Checksum.pseudoHeader(sourceIp, destinationIp, 6, tcpLength)
+        )
+        buffer.putShort(tcpStart + 16, checksum.toShort())
+        return totalLength
+    }
+
+    /**
+     * 写入发往客户端的UDP数据包报头，负载数据须已位于 offset + [UDP_PAYLOAD_OFFSET] 处。
+     *
+     * @return 数据包总长度
+     */
+    fun encodeUdp(buffer: ByteBuffer, offset: Int, ip: IP4Header, udp: UDPHeader, payloadLength: Int): Int {
+        val totalLength = UDP_PAYLOAD_OFFSET + payloadLength
+        writeIp4Header(buffer, offset, totalLength, 0, 17, ip.destinationIP, ip.sourceIP)
+
+        val udpStart = offset + IP4_HEADER_SIZE
+        buffer.putShort(udpStart, udp.destinationPort.toShort())
+        buffer.putShort(udpStart + 2, udp.sourcePort.toShort())
+        buffer.putShort(udpStart + 4, (UDP_HEADER_SIZE + payloadLength).toShort())
+        //IPv4下UDP校验和可选，0表示不校验
+        buffer.putShort(udpStart + 6, 0)
+        return totalLength
+    }
+
+    /**
+     * 刷新已由[encodeTcp]编码的非SYN数据包中随时间变化的字段（确认号、标志、窗口和时间戳），
+     * 用于重传。序列号、地址和负载不变，TCP校验和按RFC 1624增量更新，无需重新累加整个数据包，
+     * IP报头保持不变。
+     *
+     * @return 数据包总长度
+     */
+    fun refreshTcp(
+        buffer: ByteBuffer, offset: Int, flags: Int, ackNumber: Long, window: Int,
+        options: TcpOptions, tsValue: Int, tsEchoReply: Int
+    ): Int {
+        val tcpStart = offset + (buffer.get(offset).toInt() and 0x0F) * 4
+        var checksum = buffer.getShort(tcpStart + 16).toInt() and 0xFFFF
+
+        checksum = Checksum.update32(checksum, buffer.getInt(tcpStart + 8), ackNumber.toInt())
+        buffer.putInt(tcpStart + 8, ackNumber.toInt())
+
+        //数据偏移与标志共用一个16位字
+        val oldControl = buffer.getShort(tcpStart + 12).toInt() and 0xFFFF
+        val newControl = (oldControl and 0xFF00) or (flags and 0xFF)
+        checksum = Checksum.update16(checksum, oldControl, newControl)
+        buffer.putShort(tcpStart + 12, newControl.toShort())
+
+        checksum = Checksum.update16(checksum, buffer.getShort(tcpStart + 14).toInt(), window)
+        buffer.putShort(tcpStart + 14, window.toShort())
+
+        if (options.timestamps) {
+            val tsStart = tcpStart + TCP_HEADER_SIZE + TcpOptions.TIMESTAMP_VALUE_OFFSET
+            checksum = Checksum.update32(checksum, buffer.getInt(tsStart), tsValue)
+            checksum = Checksum.update32(checksum, buffer.getInt(tsStart + 4), tsEchoReply)
+            buffer.putInt(tsStart, tsValue)
+            buffer.putInt(tsStart + 4, tsEchoReply)
+        }
+        buffer.putShort(tcpStart + 16, checksum.toShort())
+        return buffer.getShort(offset + 2).toInt() and 0xFFFF
+    }
+
+    private fun writeIp4Header(
+        buffer: ByteBuffer, offset: Int, totalLength: Int, flagsAndFragment: Int,
+        protocol: Int, sourceIp: Int, destinationIp: Int
+    ) {
+        buffer.put(offset, 0x45)
+        buffer.put(offset + 1, 0)
+        buffer.putShort(offset + 2, totalLength.toShort())
+        buffer.putShort(offset + 4, PacketUtil.getPacketId().toShort())
+        buffer.putShort(offset + 6, flagsAndFragment.toShort())
+        buffer.put(offset + 8, DEFAULT_TTL.toByte())
+        buffer.put(offset + 9, protocol.toByte())
+        buffer.putShort(offset + 10, 0)
+        buffer.putInt(offset + 12, sourceIp)
+        buffer.putInt(offset + 16, destinationIp)
+
+        val checksum = Checksum.checksum(buffer, offset, IP4_HEADER_SIZE)
+        buffer.putShort(offset + 10, checksum.toShort())
+    }
+}
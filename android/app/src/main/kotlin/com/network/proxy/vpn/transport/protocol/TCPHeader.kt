@@ -16,24 +16,29 @@ class TCPHeader(
     var flags: Int = 0, //标志位 9bit
     var windowSize: Int = 0, //窗口大小 16bit
     var checksum: Int = 0, //校验和 16bit
-    private var urgentPointer: Int = 0, //紧急指针 16bit
+    var urgentPointer: Int = 0, //紧急指针 16bit
     var options: ByteArray? = null //选项
 ) : TransportHeader {
 
     //options
     var maxSegmentSize: Short = 0
-    private var windowScale: Byte = 0
-    private var isSelectiveAckPermitted = false
+
+    //窗口扩大因子，未携带时为-1
+    var windowScale = -1
+        private set
+    var isSelectiveAckPermitted = false
+        private set
+    var hasTimestamp = false
+        private set
     var timeStampSender = 0
     var timeStampReplyTo = 0
 
-    companion object {
-        private const val END_OF_OPTIONS_LIST: Byte = 0
-        private const val NO_OPERATION: Byte = 1
-        private const val MAX_SEGMENT_SIZE: Byte = 2
-        private const val WINDOW_SCALE: Byte = 3
-        private const val SELECTIVE_ACK_PERMITTED: Byte = 4
-        private const val TIME_STAMP: Byte = 8
+    //客户端ACK中的SACK块，按[左边界, 右边界)成对保存，有效块数为sackBlockCount
+    val sackBlocks = LongArray(2 * TcpOptions.MAX_SACK_BLOCKS)
+    var sackBlockCount = 0
+
+    init {
+        handleTcpOptions()
     }
 
     fun isSYN(): Boolean {
@@ -130,9 +135,9 @@ class TCPHeader(
         byteBuffer.putShort(windowSize.toShort())
         byteBuffer.putShort(checksum.toShort())
         byteBuffer.putShort(urgentPointer.toShort())
-//        encodeTcpOptions()?.let {
-//            byteBuffer.put(it)
-//        }
+        options?.let {
+            byteBuffer.put(it, 0, minOf(it.size, byteBuffer.remaining()))
+        }
 
         return tcpHeader
     }
@@ -145,52 +150,53 @@ class TCPHeader(
         )
     }
 
+    /**
+     * 解析选项，遇到长度非法的选项时停止，不会越界读取
+     */
     private fun handleTcpOptions() {
-        if (options == null) {
-            return
-        }
-
+        val options = options ?: return
+        val packet = ByteBuffer.wrap(options)
         var index = 0
-        val packet = ByteBuffer.wrap(options!!)
-        val optionsSize = options!!.size
-
-        while (index < optionsSize) {
-            val optionKind = packet.get()
-            index++
-            if (optionKind == END_OF_OPTIONS_LIST || optionKind == NO_OPERATION) {
+        while (index < options.size) {
+            val optionKind = options[index].toInt() and 0xFF
+            if (optionKind == TcpOptions.KIND_END_OF_OPTIONS) {
+                break
+            }
+            if (optionKind == TcpOptions.KIND_NO_OPERATION) {
+                index++
                 continue
             }
-            val size = packet.get()
-            index++
-            when (optionKind) {
-                MAX_SEGMENT_SIZE -> {
-                    maxSegmentSize = packet.getShort()
-                    index += 2
-                }
+            if (index + 1 >= options.size) {
+                break
+            }
+            val size = options[index + 1].toInt() and 0xFF
+            if (size < 2 || index + size > options.size) {
+                break
+            }
+            when {
+                optionKind == TcpOptions.KIND_MAX_SEGMENT_SIZE && size == 4 ->
+                    maxSegmentSize = packet.getShort(index + 2)
 
-                WINDOW_SCALE -> {
-                    windowScale = packet.get()
-                    index++
-                }
+                optionKind == TcpOptions.KIND_WINDOW_SCALE && size == 3 ->
+                    windowScale = minOf(options[index + 2].toInt() and 0xFF, TcpOptions.MAX_WINDOW_SCALE)
+
+                optionKind == TcpOptions.KIND_SACK_PERMITTED && size == 2 -> isSelectiveAckPermitted = true
 
-                SELECTIVE_ACK_PERMITTED -> isSelectiveAckPermitted = true
-                TIME_STAMP -> {
-                    timeStampSender = packet.getInt()
-                    timeStampReplyTo = packet.getInt()
-                    index += 8
+                optionKind == TcpOptions.KIND_TIMESTAMP && size == 10 -> {
+                    hasTimestamp = true
+                    timeStampSender = packet.getInt(index + 2)
+                    timeStampReplyTo = packet.getInt(index + 6)
                 }
 
-                else -> {
-                    skipRemainingOptions(packet, size.toInt())
-                    index = index + size - 2
+                optionKind == TcpOptions.KIND_SACK && (size - 2) % 8 == 0 -> {
+                    sackBlockCount = minOf((size - 2) / 8, TcpOptions.MAX_SACK_BLOCKS)
+                    for (i in 0 until sackBlockCount) {
+                        sackBlocks[2 * i] = packet.getInt(index + 2 + 8 * i).toLong() and 0xFFFFFFFFL
+                        sackBlocks[2 * i + 1] = packet.getInt(index + 6 + 8 * i).toLong() and 0xFFFFFFFFL
+                    }
                 }
             }
-        }
-    }
-
-    private fun skipRemainingOptions(packet: ByteBuffer, size: Int) {
-        for (i in 2 until size) {
-            packet.get()
+            index += size
         }
     }
 
@@ -0,0 +1,226 @@
+package com.network.proxy.vpn.transport.protocol
+
+import java.nio.ByteBuffer
+
+/**
+ * TCP报头的只读视图（flyweight），直接按偏移读取底层ByteBuffer，不产生对象分配。
+ * 选项不会被拷贝，通过[optionsOffset]和[optionsLength]在原始buffer上访问。
+ */
+class TCPHeaderView : TransportHeader {
+    companion object {
+        const val TCP_HEADER_SIZE = 20
+    }
+
+    private var buffer: ByteBuffer = ByteBuffer.allocate(0)
+
+    //TCP报头在buffer中的起始位置
+    var offset = 0
+        private set
+
+    /**
+     * 绑定到buffer的指定偏移，长度不足或数据偏移非法时返回false
+     */
+    fun wrap(buffer: ByteBuffer, offset: Int): Boolean {
+        if (buffer.limit() - offset < TCP_HEADER_SIZE) {
+            return false
+        }
+        this.buffer = buffer
+        this.offset = offset
+        val headerLength = getTCPHeaderLength()
+        return headerLength >= TCP_HEADER_SIZE && buffer.limit() - offset >= headerLength
+    }
+
+    override fun getSourcePort(): Int {
+        return buffer.getShort(offset).toInt() and 0xFFFF
+    }
+
+    override fun getDestinationPort(): Int {
+        return buffer.getShort(offset + 2).toInt() and 0xFFFF
+    }
+
+    //按无符号32位读取
+    val sequenceNumber: Long
+        get() = buffer.getInt(offset + 4).toLong() and 0xFFFFFFFFL
+
+    val ackNumber: Long
+        get() = buffer.getInt(offset + 8).toLong() and 0xFFFFFFFFL
+
+    val dataOffset: Int
+        get() = (buffer.get(offset + 12).toInt() and 0xF0) shr 4
+
+    val isNS: Boolean
+        get() = buffer.get(offset + 12).toInt() and 0x1 > 0x0
+
+    val flags: Int
+        get() = buffer.get(offset + 13).toInt()
+
+    val windowSize: Int
+        get() = buffer.getShort(offset + 14).toInt()
+
+    val checksum: Int
+        get() = buffer.getShort(offset + 16).toInt()
+
+    private val urgentPointer: Int
+        get() = buffer.getShort(offset + 18).toInt()
+
+    fun getTCPHeaderLength(): Int {
+        return dataOffset * 4
+    }
+
+    //选项在buffer中的起始位置
+    val optionsOffset: Int
+        get() = offset + TCP_HEADER_SIZE
+
+    val optionsLength: Int
+        get() = getTCPHeaderLength() - TCP_HEADER_SIZE
+
+    //负载数据的起始位置
+    val payloadOffset: Int
+        get() = offset + getTCPHeaderLength()
+
+    /**
+     * 读取选项区域中的字节，index相对于[optionsOffset]
+     */
+    fun optionByte(index: Int): Byte {
+        return buffer.get(optionsOffset + index)
+    }
+
+    /**
+     * 查找指定类型的选项，返回其在buffer中的位置，不存在或选项区域非法时返回-1
+     */
+    fun findOption(kind: Int): Int {
+        val end = optionsOffset + optionsLength
+        var i = optionsOffset
+        while (i < end) {
+            val optionKind = buffer.get(i).toInt() and 0xFF
+            if (optionKind == TcpOptions.KIND_END_OF_OPTIONS) {
+                return -1
+            }
+            if (optionKind == TcpOptions.KIND_NO_OPERATION) {
+                i++
+                continue
+            }
+            if (i + 1 >= end) {
+                return -1
+            }
+            val size = buffer.get(i + 1).toInt() and 0xFF
+            if (size < 2 || i + size > end) {
+                return -1
+            }
+            if (optionKind == kind) {
+                return i
+            }
+            i += size
+        }
+        return -1
+    }
+
+    /**
+     * 时间戳选项的位置，未携带时返回-1
+     */
+    fun timestampOffset(): Int {
+        if (optionsLength < TcpOptions.TIMESTAMP_OPTIONS_SIZE - 2) {
+            return -1
+        }
+        val index = findOption(TcpOptions.KIND_TIMESTAMP)
+        return if (index >= 0 && buffer.get(index + 1).toInt() == 10) index else -1
+    }
+
+    /**
+     * 读取SACK块到out中（左右边界成对保存），返回块数，未携带时返回0
+     */
+    fun readSackBlocks(out: LongArray): Int {
+        if (optionsLength < 10) {
+            return 0
+        }
+        val index = findOption(TcpOptions.KIND_SACK)
+        if (index < 0) {
+            return 0
+        }
+        val size = buffer.get(index + 1).toInt() and 0xFF
+        if ((size - 2) % 8 != 0) {
+            return 0
+        }
+        val count = minOf((size - 2) / 8, out.size / 2)
+        for (i in 0 until count) {
+            out[2 * i] = buffer.getInt(index + 2 + 8 * i).toLong() and 0xFFFFFFFFL
+            out[2 * i + 1] = buffer.getInt(index + 6 + 8 * i).toLong() and 0xFFFFFFFFL
+        }
+        return count
+    }
+
+    fun isSYN(): Boolean {
+        return flags and 0x02 != 0
+    }
+
+    fun isFIN(): Boolean {
+        return flags and 0x01 != 0
+    }
+
+    fun isRST(): Boolean {
+        return flags and 0x04 != 0
+    }
+
+    fun isPSH(): Boolean {
+        return flags and 0x08 != 0
+    }
+
+    fun isACK(): Boolean {
+        return flags and 0x10 != 0
+    }
+
+    /**
+     * 生成TCPHeader对象（包含选项拷贝），仅在连接需要保存报头状态时调用
+     */
+    fun toHeader(): TCPHeader {
+        var options: ByteArray? = null
+        if (optionsLength > 0) {
+            options = ByteArray(optionsLength)
+            for (i in options.indices) {
+                options[i] = optionByte(i)
+            }
+        }
+        return TCPHeader(
+            getSourcePort(), getDestinationPort(), sequenceNumber, ackNumber,
+            dataOffset, isNS, flags, windowSize, checksum, urgentPointer, options
+        )
+    }
+
+    /**
+     * 将当前报文的字段就地刷新到已有的TCPHeader中，结果与[toHeader]一致。
+     * 选项长度不变时复用原有的选项数组，避免每个数据包都创建新对象；
+     * 只在SYN中出现的MSS、窗口扩大等选项保留握手时的值
+     */
+    fun copyTo(header: TCPHeader) {
+        header.setSourcePort(getSourcePort())
+        header.setDestinationPort(getDestinationPort())
+        header.sequenceNumber = sequenceNumber
+        header.ackNumber = ackNumber
+        header.dataOffset = dataOffset
+        header.isNS = isNS
+        header.flags = flags
+        header.windowSize = windowSize
+        header.checksum = checksum
+        header.urgentPointer = urgentPointer
+        val length = optionsLength
+        if (length == 0) {
+            header.options = null
+        } else {
+            val options = header.options?.takeIf { it.size == length } ?: ByteArray(length)
+            for (i in 0 until length) {
+                options[i] = optionByte(i)
+            }
+            header.options = options
+        }
+        //未携带时间戳的报文不能沿用上一个报文的值，否则会被回显并用于RTT采样
+        val timestamp = timestampOffset()
+        if (timestamp >= 0) {
+            header.timeStampSender = buffer.getInt(timestamp + 2)
+            header.timeStampReplyTo = buffer.getInt(timestamp + 6)
+        } else {
+            header.timeStampSender = 0
+            header.timeStampReplyTo = 0
+        }
+        header.sackBlockCount = readSackBlocks(header.sackBlocks)
+    }
+}
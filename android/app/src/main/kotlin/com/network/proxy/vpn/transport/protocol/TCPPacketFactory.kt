@@ -1,7 +1,7 @@
 package com.network.proxy.vpn.transport.protocol
 
-import com.network.proxy.vpn.transport.Packet
-import com.network.proxy.vpn.util.PacketUtil
+import com.network.proxy.vpn.socket.BufferPool
+import com.network.proxy.vpn.socket.SegmentBuffer
 import java.nio.ByteBuffer
 import java.util.concurrent.ThreadLocalRandom
 
@@ -20,8 +20,8 @@ object TCPPacketFactory {
 
         val sourcePort: Int = byteBuffer.getShort().toInt() and 0xFFFF
         val destinationPort: Int = byteBuffer.getShort().toInt() and 0xFFFF
-        val sequenceNumber: Long = byteBuffer.getInt().toLong()
-        val ackNumber: Long = byteBuffer.getInt().toLong()
+        val sequenceNumber: Long = byteBuffer.getInt().toLong() and 0xFFFFFFFFL
+        val ackNumber: Long = byteBuffer.getInt().toLong() and 0xFFFFFFFFL
 
         val dataOffsetAndReserved = byteBuffer.get()
         val dataOffset = (dataOffsetAndReserved.toInt() and 0xF0) shr 4
@@ -48,251 +48,145 @@ object TCPPacketFactory {
     /**
      * 创建带有RST标志的数据包，以便在需要重置时发送到客户端。
      */
-    fun createRstData(ipHeader: IP4Header, tcpHeader: TCPHeader, dataLength: Int): ByteArray {
-        val ip = ipHeader.copy()
-        val tcp = tcpHeader.copy()
-
+    fun createRstData(pool: BufferPool, ipHeader: IP4Header, tcpHeader: TCPHeader, dataLength: Int): SegmentBuffer {
         var ackNumber: Long = 0
         var seqNumber: Long = 0
 
-        if (tcp.ackNumber > 0) {
-            seqNumber = tcp.ackNumber
+        if (tcpHeader.ackNumber != 0L) {
+            seqNumber = tcpHeader.ackNumber
         } else {
-            ackNumber = tcp.sequenceNumber + dataLength
+            ackNumber = tcpHeader.sequenceNumber + dataLength
         }
 
-        tcp.ackNumber = ackNumber
-        tcp.sequenceNumber = seqNumber
-
-        //将IP从源翻转到目标
-        flipIp(ip, tcp)
-
-        ip.identification = 0
-
-        tcp.flags = 0
-        tcp.isNS = false
-        tcp.setIsRST(true)
-
-        tcp.dataOffset = 5
-        tcp.options = null
-        tcp.windowSize = 0
-
-        //重新计算IP长度
-        val totalLength = ip.getIPHeaderLength() + tcp.getTCPHeaderLength()
-
-        ip.totalLength = totalLength
-
-        return createPacketData(ip, tcp, null)
+        return encode(pool, ipHeader, tcpHeader, PacketEncoder.FLAG_RST, seqNumber, ackNumber, 0)
     }
 
     /**
-     * 创建数据包数据以发送回客户端
+     * 在调用方提供的buffer中就地写入数据包报头，
+     * 负载须已位于 [PacketEncoder.tcpPayloadOffset] (ACK, options) 处
+     *
+     * @return 数据包总长度
      */
     @JvmStatic
-    fun createResponsePacketData(
-        ipHeader: IP4Header, tcpHeader: TCPHeader, packetData: ByteArray?, isPsh: Boolean,
-        ackNumber: Long, seqNumber: Long, timeSender: Int, timeReplyTo: Int
-    ): ByteArray {
-        val ip = ipHeader.copy()
-        val tcp = tcpHeader.copy()
-
-        flipIp(ip, tcp)
-        tcp.ackNumber = ackNumber
-        tcp.sequenceNumber = seqNumber
-        ip.identification = PacketUtil.getPacketId()
-
-        //总是发送ACK
-
+    fun encodeResponsePacket(
+        buffer: ByteBuffer, ipHeader: IP4Header, tcpHeader: TCPHeader, payloadLength: Int,
+        isPsh: Boolean, ackNumber: Long, seqNumber: Long, window: Int,
+        options: TcpOptions, tsValue: Int, tsEchoReply: Int
+    ): Int {
         //ACK is always sent
-        tcp.setIsACK(true)
-        tcp.setIsSYN(false)
-        tcp.setIsPSH(isPsh)
-        tcp.setIsFIN(false)
-        tcp.timeStampSender = timeSender
-        tcp.timeStampReplyTo = timeReplyTo
-        tcp.dataOffset = 5
-        tcp.options = null
-
-        var totalLength = ip.getIPHeaderLength() + tcp.getTCPHeaderLength()
-        if (packetData != null) {
-            totalLength += packetData.size
+        var flags = PacketEncoder.FLAG_ACK
+        if (isPsh) {
+            flags = flags or PacketEncoder.FLAG_PSH
         }
-        ip.totalLength = totalLength
-
-        return createPacketData(ip, tcp, packetData)
+        return PacketEncoder.encodeTcp(
+            buffer, 0, ipHeader, tcpHeader, flags, seqNumber, ackNumber, window, payloadLength,
+            options, tsValue, tsEchoReply
+        )
     }
 
-
     /**
      * 向客户端确认服务器已收到请求。
      */
     @JvmStatic
     fun createResponseAckData(
-        ipHeader: IP4Header, tcpHeader: TCPHeader, ackToClient: Long
-    ): ByteArray {
-        val ip = ipHeader.copy()
-        val tcp = tcpHeader.copy()
-
-        flipIp(ip, tcp)
-        val seqNumber = tcp.ackNumber
-        tcp.ackNumber = ackToClient
-        tcp.sequenceNumber = seqNumber
-
-        ip.identification = PacketUtil.getPacketId()
-
-        //ACK
-        tcp.setIsACK(true)
-        tcp.setIsSYN(false)
-        tcp.setIsPSH(false)
-        tcp.setIsFIN(false)
-        tcp.dataOffset = 5
-        tcp.options = null
-
-        ip.totalLength = ip.getIPHeaderLength() + tcp.getTCPHeaderLength()
-        return createPacketData(ip, tcp, null)
+        pool: BufferPool, ipHeader: IP4Header, tcpHeader: TCPHeader, ackToClient: Long,
+        window: Int = tcpHeader.windowSize, options: TcpOptions = TcpOptions.NONE,
+        tsValue: Int = 0, tsEchoReply: Int = 0
+    ): SegmentBuffer {
+        return encode(
+            pool, ipHeader, tcpHeader, PacketEncoder.FLAG_ACK,
+            tcpHeader.ackNumber, ackToClient, window, options, tsValue, tsEchoReply
+        )
     }
 
-    //将IP从源翻转到目标
-    private fun flipIp(ip: IP4Header, tcp: TCPHeader) {
-        val sourceIp = ip.destinationIP
-        val destIp = ip.sourceIP
-        val sourcePort = tcp.getDestinationPort()
-        val destPort = tcp.getSourcePort()
-
-        ip.destinationIP = destIp
-        ip.sourceIP = sourceIp
-        tcp.setDestinationPort(destPort)
-        tcp.setSourcePort(sourcePort)
+    /**
+     * 零窗口探测：序列号比下一个待发送的序列号小1，落在客户端窗口之外，客户端必须回复带当前窗口的ACK
+     */
+    @JvmStatic
+    fun createWindowProbeData(
+        pool: BufferPool, ipHeader: IP4Header, tcpHeader: TCPHeader, seqNumber: Long, ackToClient: Long,
+        window: Int, options: TcpOptions, tsValue: Int, tsEchoReply: Int
+    ): SegmentBuffer {
+        return encode(
+            pool, ipHeader, tcpHeader, PacketEncoder.FLAG_ACK,
+            seqNumber, ackToClient, window, options, tsValue, tsEchoReply
+        )
     }
 
     /**
-     * 通过写回客户端流创建SYN-ACK数据包数据
+     * 服务器生成的初始序列号
      */
-    fun createSynAckPacketData(ipHeader: IP4Header, tcpHeader: TCPHeader): Packet {
-        val ip = ipHeader.copy()
-        val tcp = tcpHeader.copy()
-
-        flipIp(ip, tcp)
-
-        //ack = received sequence + 1
-        val ackNumber = tcpHeader.sequenceNumber + 1
-        tcp.ackNumber = ackNumber
-
-        //服务器生成的初始序列号
-        val seqNumber = ThreadLocalRandom.current().nextLong(0, 100000)
-        tcp.sequenceNumber = seqNumber
-
-        //SYN-ACK
-        tcp.setIsACK(true)
-        tcp.setIsSYN(true)
-
-        tcp.timeStampReplyTo = tcp.timeStampSender
-        tcp.timeStampSender = PacketUtil.currentTime
-
-        tcp.dataOffset = 5
-        tcp.options = null
-        ip.totalLength = ip.getIPHeaderLength() + tcp.getTCPHeaderLength()
+    @JvmStatic
+    fun initialSequenceNumber(): Long = ThreadLocalRandom.current().nextLong(0, 100000)
 
-        return Packet(ip, tcp, createPacketData(ip, tcp, null))
+    /**
+     * 回复客户端SYN的SYN-ACK，确认号为客户端序列号加1
+     *
+     * @param options 根据客户端SYN协商的选项
+     * @param window SYN报文中的窗口不做扩大
+     */
+    fun createSynAckData(
+        pool: BufferPool, ipHeader: IP4Header, tcpHeader: TCPHeader, seqNumber: Long,
+        options: TcpOptions, window: Int, tsValue: Int
+    ): SegmentBuffer {
+        return encode(
+            pool, ipHeader, tcpHeader, PacketEncoder.FLAG_SYN or PacketEncoder.FLAG_ACK,
+            seqNumber, tcpHeader.sequenceNumber + 1, window, options, tsValue, tcpHeader.timeStampSender
+        )
     }
 
     /**
      * 创建发送到客户端的FIN-ACK
      */
     fun createFinAckData(
-        ipHeader: IP4Header, tcpHeader: TCPHeader, ackToClient: Long,
-        seqToClient: Long, isFin: Boolean, isAck: Boolean
-    ): ByteArray {
-        val ip = ipHeader.copy()
-        val tcp = tcpHeader.copy()
-
-        flipIp(ip, tcp)
-
-        tcp.ackNumber = ackToClient
-        tcp.sequenceNumber = seqToClient
-        ip.identification = PacketUtil.getPacketId()
-
-        //ACK
-        tcp.setIsACK(isAck)
-        tcp.setIsSYN(false)
-        tcp.setIsPSH(false)
-        tcp.setIsFIN(isFin)
-
-        tcp.dataOffset = 5
-        tcp.options = null
-
-        ip.totalLength = ip.getIPHeaderLength() + tcp.getTCPHeaderLength()
-        return createPacketData(ip, tcp, null)
+        pool: BufferPool, ipHeader: IP4Header, tcpHeader: TCPHeader, ackToClient: Long,
+        seqToClient: Long, isFin: Boolean, isAck: Boolean,
+        window: Int = tcpHeader.windowSize, options: TcpOptions = TcpOptions.NONE,
+        tsValue: Int = 0, tsEchoReply: Int = 0
+    ): SegmentBuffer {
+        var flags = 0
+        if (isAck) {
+            flags = flags or PacketEncoder.FLAG_ACK
+        }
+        if (isFin) {
+            flags = flags or PacketEncoder.FLAG_FIN
+        }
+        return encode(
+            pool, ipHeader, tcpHeader, flags, seqToClient, ackToClient, window,
+            options, tsValue, tsEchoReply
+        )
     }
 
     fun createFinData(
-        ip: IP4Header, tcp: TCPHeader, ackNumber: Long, seqNumber: Long,
-        timeSender: Int, timeReplyTo: Int
-    ): ByteArray {
-        //将IP从源翻转到目标
-        flipIp(ip, tcp)
-
-        tcp.ackNumber = ackNumber
-        tcp.sequenceNumber = seqNumber
-
-        ip.identification = PacketUtil.getPacketId()
-
-        tcp.timeStampReplyTo = timeReplyTo
-        tcp.timeStampSender = timeSender
-
-        tcp.flags = 0
-        tcp.isNS = false
-        tcp.setIsACK(true)
-        tcp.setIsFIN(true)
-
-        tcp.dataOffset = 5
-        tcp.options = null
+        pool: BufferPool, ip: IP4Header, tcp: TCPHeader, ackNumber: Long, seqNumber: Long,
+        options: TcpOptions, timeSender: Int, timeReplyTo: Int
+    ): SegmentBuffer {
         //窗口大小应为零
-        tcp.windowSize = 0
-
-        ip.totalLength = ip.getIPHeaderLength() + tcp.getTCPHeaderLength()
-        return createPacketData(ip, tcp, null)
+        return encode(
+            pool, ip, tcp, PacketEncoder.FLAG_ACK or PacketEncoder.FLAG_FIN,
+            seqNumber, ackNumber, 0, options, timeSender, timeReplyTo
+        )
     }
 
     /**
-     * 从tcpHeader创建tcp报文
+     * 控制包没有负载，从缓冲池借用报头大小的缓冲区，由[PacketEncoder]就地写入报头。
+     * 交给写线程后由写线程释放，归还缓冲池
      */
-    private fun createPacketData(ipHeader: IP4Header, tcpHeader: TCPHeader, data: ByteArray?):
-            ByteArray {
-        val dataLength = data?.size ?: 0
-
-        val buffer =
-            ByteBuffer.allocate(ipHeader.getIPHeaderLength() + tcpHeader.getTCPHeaderLength() + dataLength)
-        val ipBuffer = ipHeader.toBytes()
-        val tcpBuffer = tcpHeader.toBytes()
-
-        buffer.put(ipBuffer)
-        buffer.put(tcpBuffer)
-
-        data?.let { buffer.put(it) }
-
-        val zero = byteArrayOf(0, 0)
-        //计算前先将校验和清零
-        buffer.position(10)
-        buffer.put(zero)
-
-        val ipChecksum = PacketUtil.calculateChecksum(buffer.array(), 0, ipBuffer.size)
-        buffer.position(10)
-        buffer.put(ipChecksum)
-
-        val tcpStart = ipBuffer.size
-        buffer.position(tcpStart + 16)
-        buffer.put(zero)
-
-        val tcpChecksum = PacketUtil.calculateTCPHeaderChecksum(
-            buffer.array(), tcpStart, tcpBuffer.size + dataLength,
-            ipHeader.destinationIP, ipHeader.sourceIP
+    private fun encode(
+        pool: BufferPool, ipHeader: IP4Header, tcpHeader: TCPHeader, flags: Int,
+        seqNumber: Long, ackNumber: Long, window: Int,
+        options: TcpOptions = TcpOptions.NONE, tsValue: Int = 0, tsEchoReply: Int = 0
+    ): SegmentBuffer {
+        val length = PacketEncoder.tcpPayloadOffset(flags, options)
+        val segment = SegmentBuffer(pool.acquire(length), length, pool)
+        val buffer = segment.buffer
+        PacketEncoder.encodeTcp(
+            buffer, 0, ipHeader, tcpHeader,
+            flags, seqNumber, ackNumber, window, 0, options, tsValue, tsEchoReply
         )
-
-        //将新的校验和写回阵列
-        buffer.position(tcpStart + 16)
-        buffer.put(tcpChecksum)
-        return buffer.array()
+        buffer.position(0)
+        buffer.limit(length)
+        return segment
     }
 
 }
@@ -0,0 +1,135 @@
+package com.network.proxy.vpn.transport.protocol
+
+import java.nio.ByteBuffer
+
+/**
+ * 与客户端协商的TCP选项，在收到SYN时根据客户端携带的选项确定，之后不再改变，可在线程间共享。
+ *
+ * SYN-ACK携带MSS、窗口扩大因子、SACK-permitted和时间戳（仅回应客户端提供的选项），
+ * 协商了时间戳后，其余非RST报文都携带时间戳选项。
+ *
+ * @param maxSegmentSize 通告给客户端的MSS，0表示不发送
+ * @param windowScale 通告给客户端的窗口扩大因子，-1表示未协商
+ * @param sackPermitted 客户端是否允许SACK
+ * @param timestamps 是否协商了时间戳
+ */
+class TcpOptions(
+    val maxSegmentSize: Int = 0,
+    val windowScale: Int = -1,
+    val sackPermitted: Boolean = false,
+    val timestamps: Boolean = false
+) {
+    companion object {
+        const val KIND_END_OF_OPTIONS = 0
+        const val KIND_NO_OPERATION = 1
+        const val KIND_MAX_SEGMENT_SIZE = 2
+        const val KIND_WINDOW_SCALE = 3
+        const val KIND_SACK_PERMITTED = 4
+        const val KIND_SACK = 5
+        const val KIND_TIMESTAMP = 8
+
+        //RFC 7323 窗口扩大因子上限
+        const val MAX_WINDOW_SCALE = 14
+
+        //NOP NOP TS(10)
+        const val TIMESTAMP_OPTIONS_SIZE = 12
+
+        //非SYN报文中TSval相对于选项起始的偏移，TSecr紧随其后，两者都按4字节对齐
+        const val TIMESTAMP_VALUE_OFFSET = 4
+
+        //SACK选项最多携带的块数（40字节选项空间，RFC 2018）
+        const val MAX_SACK_BLOCKS = 4
+
+        @JvmField
+        val NONE = TcpOptions()
+
+        /**
+         * 根据客户端SYN携带的选项确定回应的选项
+         * @param maxSegmentSize 本端可接收的MSS
+         * @param windowScale 本端的窗口扩大因子，客户端未携带窗口扩大选项时不启用
+         */
+        fun negotiate(syn: TCPHeader, maxSegmentSize: Int, windowScale: Int): TcpOptions {
+            return TcpOptions(
+                maxSegmentSize,
+                if (syn.windowScale >= 0) windowScale else -1,
+                syn.isSelectiveAckPermitted,
+                syn.hasTimestamp
+            )
+        }
+    }
+
+    /**
+     * 选项区域长度（已按4字节对齐）
+     */
+    fun length(syn: Boolean): Int {
+        var length = 0
+        if (syn) {
+            if (maxSegmentSize > 0) length += 4
+            //NOP WS(3)
+            if (windowScale >= 0) length += 4
+            //SACK-permitted与时间戳共用填充：SACK_PERM(2) TS(10)，或 NOP NOP SACK_PERM(2)
+            if (sackPermitted || timestamps) length += if (timestamps) TIMESTAMP_OPTIONS_SIZE else 4
+        } else if (timestamps) {
+            length += TIMESTAMP_OPTIONS_SIZE
+        }
+        return length
+    }
+
+    /**
+     * 在offset处写入选项，布局与Linux一致，保证每个多字节字段按4字节对齐
+     * @return 写入的长度
+     */
+    fun write(buffer: ByteBuffer, offset: Int, syn: Boolean, tsValue: Int, tsEchoReply: Int): Int {
+        var i = offset
+        if (syn) {
+            if (maxSegmentSize > 0) {
+                buffer.put(i, KIND_MAX_SEGMENT_SIZE.toByte())
+                buffer.put(i + 1, 4)
+                buffer.putShort(i + 2, maxSegmentSize.toShort())
+                i += 4
+            }
+            if (sackPermitted && timestamps) {
+                buffer.put(i, KIND_SACK_PERMITTED.toByte())
+                buffer.put(i + 1, 2)
+                i = writeTimestamp(buffer, i + 2, tsValue, tsEchoReply)
+            } else if (timestamps) {
+                i = writeTimestamp(buffer, writeNop(buffer, i, 2), tsValue, tsEchoReply)
+            } else if (sackPermitted) {
+                i = writeNop(buffer, i, 2)
+                buffer.put(i, KIND_SACK_PERMITTED.toByte())
+                buffer.put(i + 1, 2)
+                i += 2
+            }
+            if (windowScale >= 0) {
+                i = writeNop(buffer, i, 1)
+                buffer.put(i, KIND_WINDOW_SCALE.toByte())
+                buffer.put(i + 1, 3)
+                buffer.put(i + 2, windowScale.toByte())
+                i += 3
+            }
+        } else if (timestamps) {
+            i = writeTimestamp(buffer, writeNop(buffer, i, 2), tsValue, tsEchoReply)
+        }
+        return i - offset
+    }
+
+    private fun writeNop(buffer: ByteBuffer, offset: Int, count: Int): Int {
+        for (i in 0 until count) {
+            buffer.put(offset + i, KIND_NO_OPERATION.toByte())
+        }
+        return offset + count
+    }
+
+    private fun writeTimestamp(buffer: ByteBuffer, offset: Int, tsValue: Int, tsEchoReply: Int): Int {
+        buffer.put(offset, KIND_TIMESTAMP.toByte())
+        buffer.put(offset + 1, 10)
+        buffer.putInt(offset + 2, tsValue)
+        buffer.putInt(offset + 6, tsEchoReply)
+        return offset + 10
+    }
+
+    override fun toString(): String {
+        return "TcpOptions{mss=$maxSegmentSize, windowScale=$windowScale, " +
+                "sackPermitted=$sackPermitted, timestamps=$timestamps}"
+    }
+}
@@ -1,7 +1,6 @@
 package com.network.proxy.vpn.transport.protocol
 
 
-import com.network.proxy.vpn.util.PacketUtil
 import java.nio.ByteBuffer
 
 
@@ -32,60 +31,15 @@ object UDPPacketFactory {
      */
     @JvmStatic
     fun createResponsePacket(ip: IP4Header, udp: UDPHeader, packetData: ByteArray?): ByteArray {
-        val buffer: ByteArray
-        var udpLen = 8
-        if (packetData != null) {
-            udpLen += packetData.size
-        }
-        val srcPort = udp.destinationPort
-        val destPort = udp.sourcePort
-        val ipHeader = ip.copy()
-        val srcIp = ip.destinationIP
-        val destIp = ip.sourceIP
-        ipHeader.setMayFragment(false)
-        ipHeader.sourceIP = srcIp
-        ipHeader.destinationIP = destIp
-        ipHeader.identification = PacketUtil.getPacketId()
-
+        val dataLength = packetData?.size ?: 0
         //ip的长度是整个数据包的长度 => IP header length + UDP header length (8) + UDP body length
-        val totalLength = ipHeader.getIPHeaderLength() + udpLen
-        ipHeader.totalLength = totalLength
-        buffer = ByteArray(totalLength)
-        val ipData = ipHeader.toBytes()
-
-        // clear IP checksum
-        ipData[11] = 0
-        ipData[10] = 0
-
-        //calculate checksum for IP header
-        val ipChecksum = PacketUtil.calculateChecksum(ipData, 0, ipData.size)
-        //write result of checksum back to buffer
-        System.arraycopy(ipChecksum, 0, ipData, 10, 2)
-        System.arraycopy(ipData, 0, buffer, 0, ipData.size)
-
-        //copy UDP header to buffer
-        var start = ipData.size
-        val intContainer = ByteArray(4)
-        PacketUtil.writeIntToBytes(srcPort, intContainer, 0)
-
-        //extract the last two bytes of int value
-        System.arraycopy(intContainer, 2, buffer, start, 2)
-        start += 2
-
-        PacketUtil.writeIntToBytes(destPort, intContainer, 0)
-        System.arraycopy(intContainer, 2, buffer, start, 2)
-        start += 2
-        PacketUtil.writeIntToBytes(udpLen, intContainer, 0)
-        System.arraycopy(intContainer, 2, buffer, start, 2)
-        start += 2
-
-        val checksum: Short = 0
-        PacketUtil.writeIntToBytes(checksum.toInt(), intContainer, 0)
-        System.arraycopy(intContainer, 2, buffer, start, 2)
-        start += 2
+        val buffer = ByteArray(PacketEncoder.UDP_PAYLOAD_OFFSET + dataLength)
 
         //now copy udp data
-        if (packetData != null) System.arraycopy(packetData, 0, buffer, start, packetData.size)
+        if (packetData != null) {
+            System.arraycopy(packetData, 0, buffer, PacketEncoder.UDP_PAYLOAD_OFFSET, dataLength)
+        }
+        PacketEncoder.encodeUdp(ByteBuffer.wrap(buffer), 0, ip, udp, dataLength)
         return buffer
     }
 }
@@ -0,0 +1,55 @@
+package com.network.proxy.vpn.transport.protocol
+
+import java.nio.ByteBuffer
+
+/**
+ * UDP报头的只读视图（flyweight），直接按偏移读取底层ByteBuffer，不产生对象分配。
+ */
+class UDPHeaderView : TransportHeader {
+    companion object {
+        const val UDP_HEADER_SIZE = 8
+    }
+
+    private var buffer: ByteBuffer = ByteBuffer.allocate(0)
+
+    //UDP报头在buffer中的起始位置
+    var offset = 0
+        private set
+
+    /**
+     * 绑定到buffer的指定偏移，长度不足时返回false
+     */
+    fun wrap(buffer: ByteBuffer, offset: Int): Boolean {
+        if (buffer.limit() - offset < UDP_HEADER_SIZE) {
+            return false
+        }
+        this.buffer = buffer
+        this.offset = offset
+        return true
+    }
+
+    override fun getSourcePort(): Int {
+        return buffer.getShort(offset).toInt() and 0xFFFF
+    }
+
+    override fun getDestinationPort(): Int {
+        return buffer.getShort(offset + 2).toInt() and 0xFFFF
+    }
+
+    val length: Int
+        get() = buffer.getShort(offset + 4).toInt() and 0xFFFF
+
+    val checksum: Int
+        get() = buffer.getShort(offset + 6).toInt()
+
+    //负载数据的起始位置
+    val payloadOffset: Int
+        get() = offset + UDP_HEADER_SIZE
+
+    /**
+     * 生成UDPHeader对象，仅在连接需要保存报头状态时调用
+     */
+    fun toHeader(): UDPHeader {
+        return UDPHeader(getSourcePort(), getDestinationPort(), length, checksum)
+    }
+}
@@ -0,0 +1,116 @@
+package com.network.proxy.vpn.util
+
+import java.nio.ByteBuffer
+
+/**
+ * Internet校验和（RFC 1071）计算引擎。
+ *
+ * 直接在数据包缓冲区上按64/32位读取并累加到Long中，最后统一折叠，
+ * 伪首部以算术方式累加，不需要额外拷贝；同时支持RFC 1624的增量更新。
+ * ByteBuffer须为默认的大端字节序。
+ */
+object Checksum {
+
+    /**
+     * 累加[offset, offset + length)范围内的数据，返回未折叠的部分和
+     */
+    fun sum(buffer: ByteBuffer, offset: Int, length: Int, initial: Long = 0): Long {
+        var sum = initial
+        val end = offset + length
+        var i = offset
+        while (i + 8 <= end) {
+            val value = buffer.getLong(i)
+            sum += (value ushr 32) + (value and 0xFFFFFFFFL)
+            i += 8
+        }
+        if (i + 4 <= end) {
+            sum += buffer.getInt(i).toLong() and 0xFFFFFFFFL
+            i += 4
+        }
+        if (i + 2 <= end) {
+            sum += buffer.getShort(i).toLong() and 0xFFFF
+            i += 2
+        }
+        //padding last byte to zero
+        if (i < end) {
+            sum += (buffer.get(i).toLong() and 0xFF) shl 8
+        }
+        return sum
+    }
+
+    /**
+     * 累加字节数组[offset, offset + length)范围内的数据，返回未折叠的部分和
+     */
+    fun sum(data: ByteArray, offset: Int, length: Int, initial: Long = 0): Long {
+        var sum = initial
+        val end = offset + length
+        var i = offset
+        while (i + 4 <= end) {
+            sum += ((data[i].toLong() and 0xFF) shl 24) or
+                    ((data[i + 1].toLong() and 0xFF) shl 16) or
+                    ((data[i + 2].toLong() and 0xFF) shl 8) or
+                    (data[i + 3].toLong() and 0xFF)
+            i += 4
+        }
+        if (i + 2 <= end) {
+            sum += ((data[i].toLong() and 0xFF) shl 8) or (data[i + 1].toLong() and 0xFF)
+            i += 2
+        }
+        if (i < end) {
+            sum += (data[i].toLong() and 0xFF) shl 8
+        }
+        return sum
+    }
+
+    /**
+     * TCP/UDP伪首部的部分和
+     */
+    fun pseudoHeader(sourceIp: Int, destinationIp: Int, protocol: Int, length: Int): Long {
+        return (sourceIp.toLong() and 0xFFFFFFFFL) + (destinationIp.toLong() and 0xFFFFFFFFL) +
+                protocol + length
+    }
+
+    /**
+     * 将部分和折叠为16位
+     */
+    fun fold(sum: Long): Int {
+        var folded = sum
+        while (folded ushr 16 != 0L) {
+            folded = (folded and 0xFFFF) + (folded ushr 16)
+        }
+        return folded.toInt()
+    }
+
+    /**
+     * 折叠并取反，得到最终写入报头的校验和
+     */
+    fun finish(sum: Long): Int {
+        return fold(sum).inv() and 0xFFFF
+    }
+
+    fun checksum(buffer: ByteBuffer, offset: Int, length: Int, initial: Long = 0): Int {
+        return finish(sum(buffer, offset, length, initial))
+    }
+
+    fun checksum(data: ByteArray, offset: Int, length: Int, initial: Long = 0): Int {
+        return finish(sum(data, offset, length, initial))
+    }
+
+    /**
+     * RFC 1624 增量更新：某个16位字段由oldValue变为newValue时，HC' = ~(~HC + ~m + m')
+     */
+    fun update16(checksum: Int, oldValue: Int, newValue: Int): Int {
+        val sum = (checksum.inv() and 0xFFFF).toLong() + (oldValue.inv() and 0xFFFF) + (newValue and 0xFFFF)
+        return finish(sum)
+    }
+
+    /**
+     * RFC 1624 增量更新32位字段（地址、序列号、确认号）
+     */
+    fun update32(checksum: Int, oldValue: Int, newValue: Int): Int {
+        val sum = (checksum.inv() and 0xFFFF).toLong() +
+                (oldValue.inv() ushr 16) + (oldValue.inv() and 0xFFFF) +
+                (newValue ushr 16) + (newValue and 0xFFFF)
+        return finish(sum)
+    }
+}
@@ -4,8 +4,7 @@ import android.util.Log
 import com.network.proxy.vpn.formatTag
 import com.network.proxy.vpn.transport.protocol.IP4Header
 import com.network.proxy.vpn.transport.protocol.TCPHeader
-import java.nio.ByteBuffer
-import java.nio.ByteOrder
+import com.network.proxy.vpn.transport.protocol.TCPHeaderView
 
 /**
  * Helper class to perform various useful task
@@ -18,6 +17,18 @@ object PacketUtil {
     val currentTime: Int
         get() = (System.currentTimeMillis() / 1000).toInt()
 
+    /**
+     * TCP时间戳选项使用的时钟，单调递增的毫秒数
+     */
+    val timestampMillis: Int
+        get() = (System.nanoTime() / 1_000_000).toInt()
+
+    /**
+     * 单调时钟的毫秒数，用于定时器，与[timestampMillis]同一时钟
+     */
+    val elapsedMillis: Long
+        get() = System.nanoTime() / 1_000_000
+
     /**
      * convert int to byte array
      * [...](https://docs.oracle.com/javase/tutorial/java/nutsandbolts/datatypes.html)
@@ -68,23 +79,9 @@ object PacketUtil {
         source: Int, destination: Int,
         data: ByteArray, tcpLength: Short, tcpOffset: Int
     ): Boolean {
-        var buffersize = tcpLength + 12
-        var isodd = false
-        if (buffersize % 2 != 0) {
-            buffersize++
-            isodd = true
-        }
-        val buffer = ByteBuffer.allocate(buffersize)
-        buffer.putInt(source)
-        buffer.putInt(destination)
-        buffer.put(0.toByte()) //reserved => 0
-        buffer.put(6.toByte()) //TCP protocol => 6
-        buffer.putShort(tcpLength)
-        buffer.put(data, tcpOffset, tcpLength.toInt())
-        if (isodd) {
-            buffer.put(0.toByte())
-        }
-        return isValidIPChecksum(buffer.array(), buffersize)
+        val length = tcpLength.toInt()
+        val sum = Checksum.sum(data, tcpOffset, length, Checksum.pseudoHeader(source, destination, 6, length))
+        return Checksum.finish(sum) == 0
     }
 
     /**
@@ -94,36 +91,11 @@ object PacketUtil {
      * @return boolean
      */
     private fun isValidIPChecksum(data: ByteArray, length: Int): Boolean {
-        var start = 0
-        var sum = 0
-        while (start < length) {
-            sum += getNetworkInt(data, start, 2)
-            start = start + 2
-        }
-
-        //carry over one's complement
-        while (sum shr 16 > 0) sum = (sum and 0xffff) + (sum shr 16)
-
-        //flip the bit to get one' complement
-        sum = sum.inv()
-        val buffer = ByteBuffer.allocate(4)
-        buffer.putInt(sum)
-        return buffer.getShort(2).toInt() == 0
+        return Checksum.checksum(data, 0, length) == 0
     }
 
     fun calculateChecksum(data: ByteArray, offset: Int, length: Int): ByteArray {
-        var start = offset
-        var sum = 0
-        while (start < length) {
-            sum += getNetworkInt(data, start, 2)
-            start = start + 2
-        }
-        //carry over one's complement
-        while (sum shr 16 > 0) {
-            sum = (sum and 0xffff) + (sum shr 16)
-        }
-        //flip the bit to get one' complement
-        sum = sum.inv()
+        val sum = Checksum.checksum(data, offset, length)
 
         //extract the last two byte of int
         val checksum = ByteArray(2)
@@ -139,31 +111,12 @@ object PacketUtil {
         destip: Int,
         sourceip: Int
     ): ByteArray {
-        var buffersize = tcplength + 12
-        var odd = false
-        if (buffersize % 2 != 0) {
-            buffersize++
-            odd = true
-        }
-        val buffer = ByteBuffer.allocate(buffersize)
-        buffer.order(ByteOrder.BIG_ENDIAN)
-
-        //create virtual header
-        buffer.putInt(sourceip)
-        buffer.putInt(destip)
-        buffer.put(0.toByte()) //reserved => 0
-        buffer.put(6.toByte()) //tcp protocol => 6
-        buffer.putShort(tcplength.toShort())
-
-        //add actual header + data
-        buffer.put(data, offset, tcplength)
-
-        //padding last byte to zero
-        if (odd) {
-            buffer.put(0.toByte())
-        }
-        val tcparray = buffer.array()
-        return calculateChecksum(tcparray, 0, buffersize)
+        //伪首部直接参与累加，不再拷贝整个报文
+        val sum = Checksum.checksum(data, offset, tcplength, Checksum.pseudoHeader(sourceip, destip, 6, tcplength))
+        val checksum = ByteArray(2)
+        checksum[0] = (sum shr 8).toByte()
+        checksum[1] = sum.toByte()
+        return checksum
     }
 
     fun intToIPAddress(addressInt: Int): String {
@@ -225,15 +178,15 @@ object PacketUtil {
     /**
      * detect packet corruption flag in tcp options sent from client ACK
      *
-     * @param tcpHeader TCPHeader
+     * @param tcpHeader TCP报头视图，直接在原始数据包上读取选项
      * @return boolean
      */
-    fun isPacketCorrupted(tcpHeader: TCPHeader): Boolean {
-        val options = tcpHeader.options
-        if (options != null) {
+    fun isPacketCorrupted(tcpHeader: TCPHeaderView): Boolean {
+        val optionsLength = tcpHeader.optionsLength
+        if (optionsLength > 0) {
             var i = 0
-            while (i < options.size) {
-                val kind = options[i]
+            while (i < optionsLength) {
+                val kind = tcpHeader.optionByte(i)
                 if (kind.toInt() == 0 || kind.toInt() == 1) {
                 } else if (kind.toInt() == 2) {
                     i += 3
@@ -242,7 +195,7 @@ object PacketUtil {
                 } else if (kind.toInt() == 4) {
                     i++
                 } else if (kind.toInt() == 5 || kind.toInt() == 15) {
-                    i = i + options[++i] - 2
+                    i = i + tcpHeader.optionByte(++i) - 2
                 } else if (kind.toInt() == 8) {
                     i += 9
                 } else if (kind.toInt() == 23) {
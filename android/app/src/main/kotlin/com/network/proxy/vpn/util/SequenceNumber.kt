@@ -0,0 +1,30 @@
+package com.network.proxy.vpn.util
+
+/**
+ * TCP序列号的模2^32运算（RFC 1982），序列号回绕后比较结果依然正确。
+ * 只使用低32位，因此有符号读取的序列号与累加后超出32位的序列号可以混用。
+ */
+object SequenceNumber {
+
+    /**
+     * a - b 的有符号距离
+     */
+    fun diff(a: Long, b: Long): Int {
+        return (a - b).toInt()
+    }
+
+    fun lt(a: Long, b: Long): Boolean = diff(a, b) < 0
+
+    fun le(a: Long, b: Long): Boolean = diff(a, b) <= 0
+
+    fun gt(a: Long, b: Long): Boolean = diff(a, b) > 0
+
+    fun ge(a: Long, b: Long): Boolean = diff(a, b) >= 0
+
+    /**
+     * 序列号加上长度，结果规范为无符号32位
+     */
+    fun add(seq: Long, length: Int): Long {
+        return (seq + length) and 0xFFFFFFFFL
+    }
+}
@@ -12,7 +12,8 @@ object TLS {
     fun isTLSClientHello(packetData: ByteBuffer): Boolean {
         if (packetData.remaining() < 43) return false
         val position = packetData.position()
-        val data = packetData.array()
+        //按绝对位置读取，兼容直接缓冲区
+        val data = packetData
         if (data[position].toInt() != 0x16 /* handshake */) return false
         if (data[1 + position].toInt() != 0x03) return false
         return if (data[5 + position].toInt() != 0x01) false else data[9 + position].toInt() == 0x03 && data[10 + position] >= 0x00 && data[1 + position] <= 0x03
@@ -0,0 +1,163 @@
+package com.network.proxy.vpn
+
+import com.network.proxy.vpn.socket.BufferPool
+import com.network.proxy.vpn.socket.CloseableConnection
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertSame
+import org.junit.Test
+import java.util.Random
+
+/**
+ * [ConnectionTable]的查找、删除回移、扩容和LRU顺序
+ */
+class ConnectionTableTest {
+    private val closer = object : CloseableConnection {
+        override fun closeConnection(connection: Connection) {}
+    }
+    private val pool = BufferPool()
+
+    private fun connection(sourcePort: Int, destPort: Int = 443, protocol: Protocol = Protocol.TCP): Connection {
+        return Connection(protocol, 0x0A000002, sourcePort, 0x08080808, destPort, closer, pool)
+    }
+
+    private fun ConnectionTable.find(connection: Connection): Connection? {
+        return this[connection.flowAddresses, connection.flowPorts]
+    }
+
+    private fun ConnectionTable.remove(connection: Connection): Connection? {
+        return remove(connection.flowAddresses, connection.flowPorts)
+    }
+
+    /**
+     * 在16个槽的表中起始槽位为home的连接
+     */
+    private fun collidingConnections(home: Int, count: Int): List<Connection> {
+        val result = ArrayList<Connection>()
+        var port = 1
+        while (result.size < count) {
+            val candidate = connection(port++)
+            if (ConnectionTable.hash(candidate.flowAddresses, candidate.flowPorts).toInt() and 15 == home) {
+                result.add(candidate)
+            }
+        }
+        return result
+    }
+
+    @Test
+    fun putGetRemove() {
+        val table = ConnectionTable()
+        val tcp = connection(40000)
+        val udp = connection(40000, protocol = Protocol.UDP)
+        table.put(tcp)
+        table.put(udp)
+        assertEquals(2, table.size)
+        assertSame(tcp, table.find(tcp))
+        assertSame(udp, table.find(udp))
+        assertNull(table.find(connection(40001)))
+
+        assertSame(tcp, table.remove(tcp))
+        assertNull(table.find(tcp))
+        assertNull(table.remove(tcp))
+        assertSame(udp, table.find(udp))
+        assertEquals(1, table.size)
+    }
+
+    @Test
+    fun putReplacesSameFlow() {
+        val table = ConnectionTable()
+        val first = connection(40000)
+        val second = connection(40000)
+        table.put(first)
+        table.put(second)
+        assertEquals(1, table.size)
+        assertSame(second, table.find(first))
+        assertSame(second, table.eldest())
+    }
+
+    @Test
+    fun deleteShiftsProbeChainBack() {
+        //起始槽位为15，探测链回绕到0和1
+        val chain = collidingConnections(15, 4)
+        val table = ConnectionTable(16)
+        chain.forEach { table.put(it) }
+
+        //删除链首后，后面的元素仍能找到
+        table.remove(chain[0])
+        for (i in 1 until chain.size) {
+            assertSame(chain[i], table.find(chain[i]))
+        }
+        //删除链中间的元素
+        table.remove(chain[2])
+        assertSame(chain[1], table.find(chain[1]))
+        assertSame(chain[3], table.find(chain[3]))
+        assertNull(table.find(chain[2]))
+
+        //重新放入已删除的连接
+        table.put(chain[0])
+        table.put(chain[2])
+        chain.forEach { assertSame(it, table.find(it)) }
+        assertEquals(chain.size, table.size)
+    }
+
+    @Test
+    fun resizeKeepsEveryConnection() {
+        val table = ConnectionTable(16)
+        val connections = (1..1000).map { connection(it) }
+        connections.forEach { table.put(it) }
+        assertEquals(1000, table.size)
+        connections.forEach { assertSame(it, table.find(it)) }
+    }
+
+    @Test
+    fun randomOperationsMatchHashMap() {
+        val random = Random(20)
+        val table = ConnectionTable(16)
+        val reference = HashMap<Int, Connection>()
+        for (op in 0 until 200_000) {
+            //端口取值范围小，put、remove和查找大量命中同一批连接
+            val port = random.nextInt(300)
+            when (random.nextInt(3)) {
+                0 -> {
+                    val connection = connection(port)
+                    table.put(connection)
+                    reference[port] = connection
+                }
+                1 -> {
+                    val removed = table.remove(connection(port))
+                    assertSame(reference.remove(port), removed)
+                }
+                else -> assertSame(reference[port], table.find(connection(port)))
+            }
+            assertEquals(reference.size, table.size)
+        }
+        reference.values.forEach { assertSame(it, table.find(it)) }
+    }
+
+    @Test
+    fun eldestFollowsActivity() {
+        val table = ConnectionTable()
+        val a = connection(1)
+        val b = connection(2)
+        val c = connection(3)
+        table.put(a)
+        table.put(b)
+        table.put(c)
+        assertSame(a, table.eldest())
+
+        table.touch(a)
+        assertSame(b, table.eldest())
+
+        table.remove(b)
+        assertSame(c, table.eldest())
+
+        //已删除的连接不会被touch重新放入
+        table.touch(b)
+        assertNull(table.find(b))
+        assertEquals(2, table.size)
+
+        table.remove(c)
+        table.remove(a)
+        assertNull(table.eldest())
+    }
+}
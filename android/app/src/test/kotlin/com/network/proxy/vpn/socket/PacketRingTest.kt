@@ -0,0 +1,124 @@
+package com.network.proxy.vpn.socket
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.concurrent.CountDownLatch
+
+/**
+ * [PacketRing]的容量取整、满和空的判断，以及多生产者并发入队时每个生产者的顺序
+ */
+class PacketRingTest {
+
+    @Test
+    fun capacityRoundsUpToPowerOfTwo() {
+        assertEquals(2, PacketRing(1).capacity())
+        assertEquals(2, PacketRing(2).capacity())
+        assertEquals(4, PacketRing(3).capacity())
+        assertEquals(1024, PacketRing(1000).capacity())
+        assertEquals(2048, PacketRing(2048).capacity())
+    }
+
+    @Test
+    fun smallestRingHoldsTwoItems() {
+        val ring = PacketRing(1)
+        assertTrue(ring.offer("a"))
+        assertTrue(ring.offer("b"))
+        assertFalse(ring.offer("c"))
+        assertEquals("a", ring.poll())
+        assertEquals("b", ring.poll())
+        assertNull(ring.poll())
+    }
+
+    @Test
+    fun fullAndEmpty() {
+        val ring = PacketRing(4)
+        assertTrue(ring.isEmpty())
+        assertNull(ring.poll())
+
+        for (i in 0 until 4) {
+            assertTrue(ring.offer(i))
+        }
+        assertEquals(4, ring.size())
+        assertFalse(ring.offer(4))
+
+        assertEquals(0, ring.poll())
+        assertTrue(ring.offer(4))
+        for (i in 1..4) {
+            assertEquals(i, ring.poll())
+        }
+        assertTrue(ring.isEmpty())
+        assertNull(ring.poll())
+    }
+
+    @Test
+    fun wrapsAroundManyTimes() {
+        val ring = PacketRing(8)
+        var next = 0
+        var expected = 0
+        for (round in 0 until 10_000) {
+            //每轮入队和出队的数量不同，头尾指针在各个槽位间回绕
+            repeat(round % 8 + 1) {
+                if (ring.offer(next)) next++
+            }
+            repeat(round % 5 + 1) {
+                val item = ring.poll()
+                if (item != null) {
+                    assertEquals(expected++, item)
+                }
+            }
+        }
+        var item = ring.poll()
+        while (item != null) {
+            assertEquals(expected++, item)
+            item = ring.poll()
+        }
+        assertEquals(next, expected)
+    }
+
+    @Test
+    fun recordsEnqueueTime() {
+        val ring = PacketRing(4)
+        val before = System.nanoTime()
+        ring.offer("a")
+        val after = System.nanoTime()
+        ring.poll()
+        assertTrue(ring.lastEnqueueNanos in before..after)
+    }
+
+    @Test
+    fun concurrentProducersKeepPerProducerOrder() {
+        val producers = 4
+        val perProducer = 200_000
+        val ring = PacketRing(64)
+        val startLatch = CountDownLatch(1)
+        val threads = (0 until producers).map { p ->
+            Thread {
+                startLatch.await()
+                for (i in 0 until perProducer) {
+                    //高位是生产者编号，低位是其序号
+                    val item = p.toLong() shl 32 or i.toLong()
+                    while (!ring.offer(item)) {
+                        Thread.yield()
+                    }
+                }
+            }.apply { start() }
+        }
+        startLatch.countDown()
+
+        val next = IntArray(producers)
+        var received = 0
+        while (received < producers * perProducer) {
+            val item = ring.poll() as Long? ?: continue
+            val producer = (item ushr 32).toInt()
+            assertEquals(next[producer], item.toInt())
+            next[producer]++
+            received++
+        }
+        threads.forEach { it.join() }
+        assertNull(ring.poll())
+        next.forEach { assertEquals(perProducer, it) }
+    }
+}
@@ -0,0 +1,193 @@
+package com.network.proxy.vpn.socket
+
+import com.network.proxy.vpn.util.SequenceNumber
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+
+/**
+ * [RetransmissionQueue]的累计确认、部分确认、SACK记分板、扩容和序列号回绕
+ */
+class RetransmissionQueueTest {
+    companion object {
+        private const val SEGMENT = 1000
+    }
+
+    private lateinit var pool: BufferPool
+
+    @Before
+    fun setUp() {
+        pool = BufferPool()
+    }
+
+    private fun segment(length: Int = SEGMENT): SegmentBuffer {
+        return SegmentBuffer(pool.acquire(40 + length), 40, pool).apply { payloadLength = length }
+    }
+
+    /**
+     * 从start开始连续发送count个报文段
+     */
+    private fun RetransmissionQueue.send(start: Long, count: Int, now: Long = 0) {
+        for (i in 0 until count) {
+            add(SequenceNumber.add(start, i * SEGMENT), segment(), now)
+        }
+    }
+
+    @Test
+    fun cumulativeAckReleasesSegments() {
+        val queue = RetransmissionQueue()
+        queue.send(1000, 3, now = 10)
+
+        assertEquals(2 * SEGMENT, queue.acknowledge(3000, 50))
+        assertEquals(1, queue.size)
+        assertEquals(3000L, queue.sequenceAt(0))
+        assertEquals(40L, queue.rttSample)
+        assertEquals(1, pool.stats().outstanding)
+
+        assertEquals(SEGMENT, queue.acknowledge(4000, 60))
+        assertTrue(queue.isEmpty())
+        assertEquals(0, pool.stats().outstanding)
+    }
+
+    @Test
+    fun partialAckCountsOnlyNewBytes() {
+        val queue = RetransmissionQueue()
+        queue.send(1000, 2)
+
+        assertEquals(300, queue.acknowledge(1300, 0))
+        assertEquals(2, queue.size)
+        //重复的部分确认不再计数
+        assertEquals(0, queue.acknowledge(1300, 0))
+        assertEquals(400, queue.acknowledge(1700, 0))
+        //完整确认时只计入剩余的部分
+        assertEquals(300 + SEGMENT, queue.acknowledge(3000, 0))
+        assertTrue(queue.isEmpty())
+    }
+
+    @Test
+    fun retransmittedSegmentGivesNoRttSample() {
+        val queue = RetransmissionQueue()
+        queue.send(1000, 2, now = 0)
+        queue.markRetransmitted(0, 100)
+        assertTrue(queue.isRetransmitted(0))
+
+        queue.acknowledge(2000, 150)
+        assertEquals(-1L, queue.rttSample)
+        queue.acknowledge(3000, 150)
+        assertEquals(150L, queue.rttSample)
+    }
+
+    @Test
+    fun sackScoreboardFindsHoles() {
+        val queue = RetransmissionQueue()
+        queue.send(1000, 5)
+        assertFalse(queue.hasSacked)
+
+        //第2和第4个报文段丢失
+        queue.markSacked(2000, 3000)
+        queue.markSacked(4000, 5000)
+        assertTrue(queue.hasSacked)
+        assertEquals(5000L, queue.highestSacked)
+
+        assertTrue(queue.isHole(0))
+        assertFalse(queue.isHole(1))
+        assertTrue(queue.isHole(2))
+        assertFalse(queue.isHole(3))
+        //最高SACK之后的报文段不算空洞
+        assertFalse(queue.isHole(4))
+
+        //只部分覆盖的报文段不标记，但它已在最高SACK之前，成为空洞
+        queue.markSacked(5000, 5500)
+        assertTrue(queue.isHole(4))
+        assertEquals(5500L, queue.highestSacked)
+
+        //确认第一个空洞后，第二个空洞移到队首
+        queue.acknowledge(2000, 0)
+        assertTrue(queue.isHole(1))
+        assertFalse(queue.isHole(0))
+
+        queue.clearSacked()
+        assertFalse(queue.hasSacked)
+        for (i in 0 until queue.size) {
+            assertFalse(queue.isHole(i))
+        }
+    }
+
+    @Test
+    fun timeoutAllowsHolesToBeResentAgain() {
+        val queue = RetransmissionQueue()
+        queue.send(1000, 3)
+        queue.markSacked(2000, 3000)
+        queue.markRetransmitted(0, 100)
+        assertTrue(queue.isResent(0))
+        assertFalse(queue.isResent(2))
+
+        //超时结束本轮恢复，重传标记仍保留，不用于RTT采样
+        queue.clearSacked()
+        assertFalse(queue.isResent(0))
+        assertTrue(queue.isRetransmitted(0))
+        queue.acknowledge(2000, 150)
+        assertEquals(-1L, queue.rttSample)
+    }
+
+    @Test
+    fun growKeepsOrderAndState() {
+        val queue = RetransmissionQueue(4)
+        queue.send(1000, 3)
+        //队首前移，扩容时环形数组已回绕
+        queue.acknowledge(3000, 0)
+        queue.send(4000, 8)
+        queue.markRetransmitted(1, 0)
+        queue.markSacked(6000, 7000)
+
+        assertEquals(9, queue.size)
+        for (i in 0 until queue.size) {
+            assertEquals(3000L + i * SEGMENT, queue.sequenceAt(i))
+        }
+        assertTrue(queue.isRetransmitted(1))
+        assertTrue(queue.isResent(1))
+        assertFalse(queue.isHole(3))
+        assertTrue(queue.isHole(2))
+
+        queue.acknowledge(12000, 0)
+        assertTrue(queue.isEmpty())
+        assertEquals(0, pool.stats().outstanding)
+    }
+
+    @Test
+    fun sequenceNumbersWrapAround() {
+        val queue = RetransmissionQueue()
+        val start = 0xFFFFFFFFL - 1500
+        queue.send(start, 4)
+        val wrapped = SequenceNumber.add(start, 4 * SEGMENT)
+        assertTrue(wrapped < start)
+
+        queue.markSacked(SequenceNumber.add(start, 2 * SEGMENT), SequenceNumber.add(start, 3 * SEGMENT))
+        assertTrue(queue.isHole(0))
+        assertTrue(queue.isHole(1))
+        assertFalse(queue.isHole(2))
+
+        //确认号越过2^32
+        assertEquals(2 * SEGMENT, queue.acknowledge(SequenceNumber.add(start, 2 * SEGMENT), 0))
+        assertEquals(2, queue.size)
+        assertEquals(2 * SEGMENT, queue.acknowledge(wrapped, 0))
+        assertTrue(queue.isEmpty())
+    }
+
+    @Test
+    fun clearReleasesEverySegment() {
+        val queue = RetransmissionQueue()
+        queue.send(1000, 3)
+        //写线程仍持有的报文段在写完后才归还
+        val writing = queue.segmentAt(1)
+        writing.retain()
+        queue.clear()
+        assertTrue(queue.isEmpty())
+        assertEquals(1, pool.stats().outstanding)
+
+        writing.release()
+        assertEquals(0, pool.stats().outstanding)
+    }
+}
@@ -0,0 +1,229 @@
+package com.network.proxy.vpn.socket
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import java.util.Random
+
+/**
+ * [TimingWheel]的调度、取消、重新调度和跨层降级。
+ *
+ * 调度按真实时钟计算到期时间，推进时传入的时间在此基础上前移，不需要等待
+ */
+class TimingWheelTest {
+    companion object {
+        private const val TICK = TimingWheel.DEFAULT_TICK_MILLIS
+        private const val HOUR = 3_600_000L
+    }
+
+    private lateinit var wheel: TimingWheel
+    private var start = 0L
+
+    @Before
+    fun setUp() {
+        wheel = TimingWheel()
+        start = nowMillis()
+    }
+
+    private fun nowMillis(): Long = System.nanoTime() / 1_000_000
+
+    /**
+     * 调度delay毫秒后到期的定时器，返回其执行次数的计数器
+     */
+    private fun schedule(delay: Long): IntArray {
+        val fired = IntArray(1)
+        wheel.newTimer { fired[0]++ }.schedule(delay)
+        return fired
+    }
+
+    @Test
+    fun firesAfterDelay() {
+        val fired = schedule(100)
+        assertEquals(1, wheel.size)
+
+        wheel.advance(start + 100 - 2 * TICK)
+        assertEquals(0, fired[0])
+
+        wheel.advance(nowMillis() + 100 + TICK)
+        assertEquals(1, fired[0])
+        assertEquals(0, wheel.size)
+
+        //已到期的定时器不会再次执行
+        wheel.advance(nowMillis() + 1000)
+        assertEquals(1, fired[0])
+    }
+
+    @Test
+    fun cascadesFromOuterLevels() {
+        //分别落在第1层（约1.3秒到5.5分钟）和第2层
+        val seconds = schedule(10_000)
+        val minutes = schedule(20 * 60_000)
+
+        wheel.advance(start + 10_000 - 2 * TICK)
+        assertEquals(0, seconds[0])
+        wheel.advance(nowMillis() + 10_000 + TICK)
+        assertEquals(1, seconds[0])
+
+        wheel.advance(start + 20 * 60_000 - 2 * TICK)
+        assertEquals(0, minutes[0])
+        wheel.advance(nowMillis() + 20 * 60_000 + TICK)
+        assertEquals(1, minutes[0])
+        assertEquals(0, wheel.size)
+    }
+
+    @Test
+    fun timerBeyondRangeIsRecomputed() {
+        //超过三层约23小时的范围，转过最外层后重新放入
+        val fired = schedule(30 * HOUR)
+
+        wheel.advance(start + 24 * HOUR)
+        assertEquals(0, fired[0])
+        wheel.advance(start + 30 * HOUR - 2 * TICK)
+        assertEquals(0, fired[0])
+        wheel.advance(nowMillis() + 30 * HOUR + TICK)
+        assertEquals(1, fired[0])
+    }
+
+    @Test
+    fun cancelledTimerDoesNotFire() {
+        val fired = IntArray(1)
+        val timer = wheel.newTimer { fired[0]++ }
+        timer.schedule(100)
+        timer.cancel()
+        assertFalse(timer.isScheduled)
+        assertEquals(0, wheel.size)
+        //重复取消没有影响
+        timer.cancel()
+
+        wheel.advance(nowMillis() + 1000)
+        assertEquals(0, fired[0])
+    }
+
+    @Test
+    fun cancelledInSameBatchDoesNotFire() {
+        //同时到期的两个定时器，先执行的任务取消另一个（如关闭连接时取消其所有定时器）
+        val fired = IntArray(2)
+        lateinit var first: TimingWheel.Timer
+        lateinit var second: TimingWheel.Timer
+        first = wheel.newTimer {
+            fired[0]++
+            second.cancel()
+        }
+        second = wheel.newTimer {
+            fired[1]++
+            first.cancel()
+        }
+        first.schedule(100)
+        second.schedule(100)
+
+        wheel.advance(nowMillis() + 100 + TICK)
+        assertEquals(1, fired[0] + fired[1])
+        assertEquals(0, wheel.size)
+
+        wheel.advance(nowMillis() + 1000)
+        assertEquals(1, fired[0] + fired[1])
+    }
+
+    @Test
+    fun rescheduledInSameBatchWaitsForNewExpiry() {
+        val fired = IntArray(2)
+        lateinit var first: TimingWheel.Timer
+        lateinit var second: TimingWheel.Timer
+        first = wheel.newTimer {
+            fired[0]++
+            second.schedule(5000)
+        }
+        second = wheel.newTimer {
+            fired[1]++
+            first.schedule(5000)
+        }
+        first.schedule(100)
+        second.schedule(100)
+
+        wheel.advance(nowMillis() + 100 + TICK)
+        assertEquals(1, fired[0] + fired[1])
+        assertEquals(1, wheel.size)
+
+        wheel.advance(nowMillis() + 5000 + 2 * TICK)
+        assertEquals(1, fired[0])
+        assertEquals(1, fired[1])
+    }
+
+    @Test
+    fun rescheduleReplacesExpiry() {
+        val fired = IntArray(1)
+        val timer = wheel.newTimer { fired[0]++ }
+        timer.schedule(100)
+        timer.schedule(5000)
+        assertEquals(1, wheel.size)
+
+        wheel.advance(start + 1000)
+        assertEquals(0, fired[0])
+        assertTrue(timer.isScheduled)
+
+        wheel.advance(nowMillis() + 5000 + TICK)
+        assertEquals(1, fired[0])
+    }
+
+    @Test
+    fun taskCanRescheduleItself() {
+        var runs = 0
+        lateinit var timer: TimingWheel.Timer
+        timer = wheel.newTimer {
+            if (++runs < 3) {
+                timer.schedule(100)
+            }
+        }
+        timer.schedule(100)
+
+        var now = nowMillis()
+        for (i in 0 until 5) {
+            now += 100 + TICK
+            wheel.advance(now)
+        }
+        assertEquals(3, runs)
+        assertEquals(0, wheel.size)
+    }
+
+    @Test
+    fun prepareSleepBoundsSelect() {
+        assertEquals(0, wheel.prepareSleep(nowMillis()))
+
+        schedule(100)
+        val sleep = wheel.prepareSleep(nowMillis())
+        assertTrue(sleep in 1..100 + TICK)
+    }
+
+    @Test
+    fun randomTimersFireOnTime() {
+        val random = Random(7)
+        val count = 2000
+        val delays = LongArray(count) { 1 + random.nextInt(2 * HOUR.toInt()).toLong() }
+        val firedAt = LongArray(count) { -1 }
+        //推进前的上一次时间，定时器在此之后的第一次推进中到期
+        val previousAt = LongArray(count)
+        var now = nowMillis()
+        var previous = now
+        for (i in 0 until count) {
+            wheel.newTimer {
+                firedAt[i] = now
+                previousAt[i] = previous
+            }.schedule(delays[i])
+        }
+        val scheduledEnd = nowMillis()
+
+        while (wheel.size > 0) {
+            previous = now
+            now += 1 + random.nextInt(10_000)
+            wheel.advance(now)
+        }
+
+        for (i in 0 until count) {
+            assertTrue("timer $i not fired", firedAt[i] >= 0)
+            assertTrue("timer $i fired early", firedAt[i] >= start + delays[i] - TICK)
+            assertTrue("timer $i fired late", previousAt[i] < scheduledEnd + delays[i] + TICK)
+        }
+    }
+}
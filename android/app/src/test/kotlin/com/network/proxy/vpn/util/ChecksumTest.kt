@@ -0,0 +1,120 @@
+package com.network.proxy.vpn.util
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import java.nio.ByteBuffer
+import java.util.Random
+
+/**
+ * [Checksum]的RFC 1071示例、按字读取与逐字节计算的一致性，以及RFC 1624增量更新与重新计算的一致性
+ */
+class ChecksumTest {
+    private val random = Random(1071)
+
+    private fun bytes(vararg values: Int): ByteArray = ByteArray(values.size) { values[it].toByte() }
+
+    /**
+     * 逐个16位字相加的参考实现
+     */
+    private fun naiveChecksum(data: ByteArray, offset: Int, length: Int): Int {
+        var sum = 0L
+        var i = 0
+        while (i < length) {
+            val high = data[offset + i].toInt() and 0xFF
+            val low = if (i + 1 < length) data[offset + i + 1].toInt() and 0xFF else 0
+            sum += (high shl 8) or low
+            i += 2
+        }
+        while (sum ushr 16 != 0L) {
+            sum = (sum and 0xFFFF) + (sum ushr 16)
+        }
+        return sum.toInt().inv() and 0xFFFF
+    }
+
+    @Test
+    fun rfc1071Example() {
+        //RFC 1071 3节：00 01 f2 03 f4 f5 f6 f7 的部分和为 ddf2
+        val data = bytes(0x00, 0x01, 0xf2, 0x03, 0xf4, 0xf5, 0xf6, 0xf7)
+        assertEquals(0xddf2, Checksum.fold(Checksum.sum(data, 0, data.size)))
+        assertEquals(0xddf2, Checksum.fold(Checksum.sum(ByteBuffer.wrap(data), 0, data.size)))
+        assertEquals(0x220d, Checksum.checksum(data, 0, data.size))
+    }
+
+    @Test
+    fun ipv4HeaderChecksum() {
+        val header = bytes(
+            0x45, 0x00, 0x00, 0x73, 0x00, 0x00, 0x40, 0x00, 0x40, 0x11,
+            0x00, 0x00, 0xc0, 0xa8, 0x00, 0x01, 0xc0, 0xa8, 0x00, 0xc7
+        )
+        assertEquals(0xb861, Checksum.checksum(ByteBuffer.wrap(header), 0, header.size))
+
+        //填入校验和后整个报头的校验和为0
+        header[10] = 0xb8.toByte()
+        header[11] = 0x61
+        assertEquals(0, Checksum.checksum(ByteBuffer.wrap(header), 0, header.size))
+    }
+
+    @Test
+    fun wordWiseSumMatchesBytewise() {
+        for (n in 0 until 2000) {
+            val data = ByteArray(1 + random.nextInt(1600))
+            random.nextBytes(data)
+            //奇数偏移和奇数长度覆盖各种尾部处理
+            val offset = random.nextInt(minOf(data.size, 16))
+            val length = random.nextInt(data.size - offset + 1)
+            val expected = naiveChecksum(data, offset, length)
+            assertEquals(expected, Checksum.checksum(data, offset, length))
+            assertEquals(expected, Checksum.checksum(ByteBuffer.wrap(data), offset, length))
+
+            val direct = ByteBuffer.allocateDirect(data.size)
+            direct.put(data)
+            assertEquals(expected, Checksum.checksum(direct, offset, length))
+        }
+    }
+
+    @Test
+    fun partialSumsChain() {
+        val data = ByteArray(1500)
+        random.nextBytes(data)
+        val buffer = ByteBuffer.wrap(data)
+        //偶数边界分段累加与一次累加相同
+        val split = 2 * random.nextInt(data.size / 2)
+        val chained = Checksum.sum(buffer, split, data.size - split, Checksum.sum(buffer, 0, split))
+        assertEquals(Checksum.checksum(data, 0, data.size), Checksum.finish(chained))
+    }
+
+    @Test
+    fun pseudoHeaderMatchesBytes() {
+        val source = 0xc0a80001.toInt()
+        val destination = 0x08080808
+        val pseudo = ByteBuffer.allocate(12)
+            .putInt(source).putInt(destination).put(0).put(6).putShort(40)
+        assertEquals(
+            Checksum.fold(Checksum.sum(pseudo.array(), 0, 12)),
+            Checksum.fold(Checksum.pseudoHeader(source, destination, 6, 40))
+        )
+    }
+
+    @Test
+    fun incrementalUpdateMatchesRecompute() {
+        for (n in 0 until 5000) {
+            val data = ByteArray(20 + 2 * random.nextInt(40))
+            random.nextBytes(data)
+            val buffer = ByteBuffer.wrap(data)
+            val checksum = Checksum.checksum(data, 0, data.size)
+
+            val offset16 = 2 * random.nextInt(data.size / 2)
+            val old16 = buffer.getShort(offset16).toInt() and 0xFFFF
+            val new16 = random.nextInt(0x10000)
+            buffer.putShort(offset16, new16.toShort())
+            val updated16 = Checksum.update16(checksum, old16, new16)
+            assertEquals(Checksum.checksum(data, 0, data.size), updated16)
+
+            val offset32 = 4 * random.nextInt(data.size / 4)
+            val old32 = buffer.getInt(offset32)
+            val new32 = random.nextInt()
+            buffer.putInt(offset32, new32)
+            assertEquals(Checksum.checksum(data, 0, data.size), Checksum.update32(updated16, old32, new32))
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.network.proxy.vpn.util
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.Random
+
+/**
+ * [SequenceNumber]的模2^32比较和累加，包括回绕和有符号读取的序列号
+ */
+class SequenceNumberTest {
+    private val max = 0xFFFFFFFFL
+
+    @Test
+    fun comparesWithoutWrap() {
+        assertTrue(SequenceNumber.lt(1000, 2000))
+        assertTrue(SequenceNumber.le(1000, 1000))
+        assertTrue(SequenceNumber.gt(2000, 1000))
+        assertTrue(SequenceNumber.ge(2000, 2000))
+        assertFalse(SequenceNumber.lt(2000, 1000))
+        assertEquals(1000, SequenceNumber.diff(2000, 1000))
+        assertEquals(-1000, SequenceNumber.diff(1000, 2000))
+    }
+
+    @Test
+    fun comparesAcrossWrap() {
+        //回绕后的小序列号在回绕前的大序列号之后
+        val beforeWrap = max - 100
+        val afterWrap = 200L
+        assertTrue(SequenceNumber.gt(afterWrap, beforeWrap))
+        assertTrue(SequenceNumber.lt(beforeWrap, afterWrap))
+        assertEquals(301, SequenceNumber.diff(afterWrap, beforeWrap))
+        assertEquals(-301, SequenceNumber.diff(beforeWrap, afterWrap))
+        assertTrue(SequenceNumber.gt(0, max))
+    }
+
+    @Test
+    fun addWrapsToUnsigned() {
+        assertEquals(99L, SequenceNumber.add(max - 100, 200))
+        assertEquals(0L, SequenceNumber.add(max, 1))
+        assertEquals(max, SequenceNumber.add(0, -1))
+        assertEquals(1500L, SequenceNumber.add(1000, 500))
+    }
+
+    @Test
+    fun signedAndUnsignedReadingsAreEqual() {
+        //按有符号int读取的序列号与无符号的相同值比较相等
+        val unsigned = 0x80000010L
+        val signed = 0x80000010.toInt().toLong()
+        assertTrue(signed < 0)
+        assertEquals(0, SequenceNumber.diff(unsigned, signed))
+        assertTrue(SequenceNumber.gt(SequenceNumber.add(signed, 1), unsigned))
+    }
+
+    @Test
+    fun randomDistancesWithinHalfSpace() {
+        val random = Random(1982)
+        for (n in 0 until 100_000) {
+            val a = random.nextInt().toLong() and max
+            //RFC 1982：距离小于2^31时比较结果正确
+            val distance = random.nextInt(Int.MAX_VALUE)
+            val b = SequenceNumber.add(a, distance)
+            assertEquals(distance, SequenceNumber.diff(b, a))
+            assertTrue(SequenceNumber.ge(b, a))
+            assertEquals(distance == 0, SequenceNumber.le(b, a))
+        }
+    }
+}